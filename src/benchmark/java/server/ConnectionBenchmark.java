@@ -0,0 +1,106 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds many concurrent connections against a running server, the way a large pool of mostly idle
+ * clients would: every connection sends a GET, waits for the answer and pauses before the next
+ * one. Reports how many connections got served at all and the latency of those that did, so the
+ * server modes can be compared: with {@code server.mode=threads}, connections beyond
+ * {@code server.threads} wait for a pool thread that never frees up while the others stay open.
+ * <p>
+ * Start the server in the mode to measure, then run {@code ./gradlew connectionBenchmark},
+ * optionally with {@code -Phost=<host> -Pport=<port> -Pconnections=<connections>}. The client
+ * runs its connections on virtual threads, so it isn't the one running out of threads.
+ */
+public class ConnectionBenchmark {
+    private static final long RUN_MILLIS = 20_000;
+    private static final long THINK_MILLIS = 100;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    private static final String KEY = "connection-benchmark";
+
+    public static void main(final String[] args) throws Exception {
+        final String host = args.length > 0 ? args[0] : "localhost";
+        final int port = args.length > 1 ? Integer.parseInt(args[1]) : 8082;
+        final int connections = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+
+        // so GETs find a value and the server doesn't log a miss for every request
+        try (Socket socket = new Socket(host, port)) {
+            final PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println("PUT " + KEY + " value");
+            new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+        }
+
+        final LongAdder connected = new LongAdder();
+        final LongAdder served = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final List<long[]> latencies = new ArrayList<>();
+        final long deadline = System.currentTimeMillis() + RUN_MILLIS;
+
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < connections; i++) {
+                clients.submit(() -> {
+                    final long[] recorded = runConnection(host, port, deadline, connected, failed);
+                    if (recorded.length > 0) {
+                        served.increment();
+                    }
+                    synchronized (latencies) {
+                        latencies.add(recorded);
+                    }
+                });
+            }
+        }
+
+        final long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("connections: %,d opened, %,d served, %,d failed%n", connected.sum(), served.sum(), failed.sum());
+        System.out.printf("requests:    %,.0f/s%n", all.length * 1000.0 / RUN_MILLIS);
+        if (all.length > 0) {
+            System.out.printf("latency:     p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                    all[all.length / 2] / 1e6, all[(int) (all.length * 0.99)] / 1e6, all[all.length - 1] / 1e6);
+        }
+    }
+
+    // returns the latency of every answered request, in nanoseconds
+    private static long[] runConnection(final String host, final int port, final long deadline,
+                                        final LongAdder connected, final LongAdder failed) {
+        final List<Long> recorded = new ArrayList<>();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            connected.increment();
+            final PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+            while (System.currentTimeMillis() < deadline) {
+                socket.setSoTimeout((int) Math.max(1, deadline - System.currentTimeMillis()));
+                final long start = System.nanoTime();
+                out.println("GET " + KEY);
+                if (in.readLine() == null) {
+                    failed.increment();
+                    break;
+                }
+                recorded.add(System.nanoTime() - start);
+                Thread.sleep(THINK_MILLIS);
+            }
+        } catch (final SocketTimeoutException e) {
+            // still waiting for an answer when the run ended
+        } catch (final IOException e) {
+            failed.increment();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return recorded.stream().mapToLong(Long::longValue).toArray();
+    }
+}
@@ -0,0 +1,136 @@
+package storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the write queue ({@link WriteRing}) with the ArrayBlockingQueue it replaced. Producers
+ * offer requests as fast as they can while a single consumer drains them in batches of up to
+ * 1000, the way the write thread does.
+ * <p>
+ * Run with {@code ./gradlew writeQueueBenchmark}, optionally with {@code -Pops=<total offers>}.
+ */
+public class WriteQueueBenchmark {
+    private static final int[] PRODUCERS = {1, 8, 64, 500};
+    private static final int CAPACITY = 1000000;
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final int ROUNDS = 3;
+
+    private interface Queue {
+        boolean offer(Object element);
+
+        Object poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+        void drainTo(List<Object> batch, int maxElements);
+    }
+
+    public static void main(final String[] args) throws InterruptedException {
+        final long ops = args.length > 0 ? Long.parseLong(args[0]) : 5_000_000;
+
+        System.out.printf("%-10s %18s %18s%n", "producers", "blocking (ops/s)", "ring (ops/s)");
+        for (final int producers : PRODUCERS) {
+            double blocking = 0;
+            double ring = 0;
+            // the first round warms up both; the best of the rest is reported
+            for (int round = 0; round < ROUNDS; round++) {
+                final double blockingRate = run(blockingQueue(), producers, ops);
+                final double ringRate = run(writeRing(), producers, ops);
+                if (round > 0) {
+                    blocking = Math.max(blocking, blockingRate);
+                    ring = Math.max(ring, ringRate);
+                }
+            }
+            System.out.printf("%-10d %,18.0f %,18.0f%n", producers, blocking, ring);
+        }
+    }
+
+    private static double run(final Queue queue, final int producers, final long ops) throws InterruptedException {
+        final long perProducer = ops / producers;
+        final long total = perProducer * producers;
+        final Object request = new Object();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < producers; i++) {
+            final Thread producer = new Thread(() -> {
+                awaitQuietly(start);
+                for (long n = 0; n < perProducer; n++) {
+                    // the engine rejects writes when the queue is full; here the producer just retries
+                    while (!queue.offer(request)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            producer.start();
+            threads.add(producer);
+        }
+
+        final List<Object> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        final long startNanos = System.nanoTime();
+        start.countDown();
+
+        long consumed = 0;
+        while (consumed < total) {
+            batch.clear();
+            final Object first = queue.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null) {
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            consumed += batch.size();
+        }
+
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        return total * 1e9 / elapsedNanos;
+    }
+
+    private static Queue blockingQueue() {
+        final ArrayBlockingQueue<Object> queue = new ArrayBlockingQueue<>(CAPACITY);
+        return new Queue() {
+            public boolean offer(final Object element) {
+                return queue.offer(element);
+            }
+
+            public Object poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+                return queue.poll(timeout, unit);
+            }
+
+            public void drainTo(final List<Object> batch, final int maxElements) {
+                queue.drainTo(batch, maxElements);
+            }
+        };
+    }
+
+    private static Queue writeRing() {
+        final WriteRing<Object> ring = new WriteRing<>(CAPACITY);
+        return new Queue() {
+            public boolean offer(final Object element) {
+                return ring.offer(element);
+            }
+
+            public Object poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+                return ring.poll(timeout, unit);
+            }
+
+            public void drainTo(final List<Object> batch, final int maxElements) {
+                ring.drainTo(batch, maxElements);
+            }
+        };
+    }
+
+    private static void awaitQuietly(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
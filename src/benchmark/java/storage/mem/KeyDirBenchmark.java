@@ -0,0 +1,202 @@
+package storage.mem;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares the concurrent keydir ({@link ConcurrentMemStore}) with a ConcurrentHashMap. Readers
+ * look up random keys as fast as they can while a single writer keeps updating keys, the way the
+ * write thread does.
+ * <p>
+ * Before measuring, a stress run checks the keydir's guarantees while it grows through seven
+ * resizes: a key is found as soon as its write returns, and a reader never sees a key's record go
+ * back to an older version or belong to a different key.
+ * <p>
+ * Run with {@code ./gradlew keyDirBenchmark}, optionally with {@code -Pkeys=<keys>}.
+ */
+public class KeyDirBenchmark {
+    private static final int[] READERS = {1, 4, 16, 64};
+    private static final long RUN_MILLIS = 2000;
+    private static final int STRESS_KEYS = 4_000_000;
+    private static final int STRESS_READERS = 8;
+
+    private interface KeyDir {
+        void write(String key, MemRecord memRecord);
+
+        MemRecord read(String key);
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int keys = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        final Path emptyDir = Files.createTempDirectory("keydir-benchmark");
+
+        stress(emptyDir);
+
+        final String[] keyNames = new String[keys];
+        // readers look keys up with their own copies, as requests parsed off the wire do
+        final String[] lookups = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            keyNames[i] = "key-" + i;
+            lookups[i] = new String(keyNames[i]);
+        }
+
+        System.out.printf("%-10s %22s %22s%n", "readers", "ConcurrentHashMap (r/s)", "keydir (r/s)");
+        for (final int readers : READERS) {
+            final double map = run(concurrentHashMap(), keyNames, lookups, readers);
+            final double keyDir = run(memStore(emptyDir), keyNames, lookups, readers);
+            System.out.printf("%-10d %,22.0f %,22.0f%n", readers, map, keyDir);
+        }
+
+        Files.delete(emptyDir);
+    }
+
+    private static double run(final KeyDir keyDir, final String[] keys, final String[] lookups, final int readers) throws InterruptedException {
+        for (int i = 0; i < keys.length; i++) {
+            keyDir.write(keys[i], new MemRecord(i, 100, 0, i, 140, 0));
+        }
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final LongAdder reads = new LongAdder();
+        final List<Thread> threads = new ArrayList<>();
+
+        // the writer keeps rewriting random keys in place, as overwrites do
+        threads.add(new Thread(() -> {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            long n = 0;
+            while (running.get()) {
+                n++;
+                keyDir.write(keys[random.nextInt(keys.length)], new MemRecord(n, 100, 1, n, 140, 0));
+            }
+        }));
+        for (int r = 0; r < readers; r++) {
+            threads.add(new Thread(() -> {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                while (running.get()) {
+                    if (keyDir.read(lookups[random.nextInt(lookups.length)]) == null) {
+                        throw new IllegalStateException("Key went missing");
+                    }
+                    count++;
+                }
+                reads.add(count);
+            }));
+        }
+
+        final long start = System.nanoTime();
+        threads.forEach(Thread::start);
+        Thread.sleep(RUN_MILLIS);
+        running.set(false);
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        return reads.sum() * 1e9 / (System.nanoTime() - start);
+    }
+
+    /**
+     * Inserts keys from empty, through every resize, then updates them, while readers check what
+     * they see. The writer publishes how far it has got; anything before that has to be readable.
+     */
+    private static void stress(final Path emptyDir) throws InterruptedException {
+        final ConcurrentMemStore memStore = new ConcurrentMemStore(emptyDir + "/", false, name -> 0);
+        final AtomicLong written = new AtomicLong();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final LongAdder checks = new LongAdder();
+        final List<String> failures = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+
+        // valueOffset holds the key's index and timestamp its version
+        threads.add(new Thread(() -> {
+            for (int i = 0; i < STRESS_KEYS; i++) {
+                memStore.write("key-" + i, i, 100, 0, 1, 140, 0);
+                written.lazySet(i + 1);
+            }
+            for (int version = 2; version <= 4; version++) {
+                for (int i = 0; i < STRESS_KEYS; i++) {
+                    memStore.write("key-" + i, i, 100, 0, version, 140, 0);
+                }
+            }
+            running.set(false);
+        }));
+        for (int r = 0; r < STRESS_READERS; r++) {
+            threads.add(new Thread(() -> {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                final byte[] lastVersion = new byte[STRESS_KEYS];
+                long count = 0;
+                while (running.get()) {
+                    final long visible = written.get();
+                    if (visible == 0) {
+                        continue;
+                    }
+
+                    final int i = random.nextInt((int) visible);
+                    final Optional<MemRecord> memRecord = memStore.read("key-" + i);
+                    final String failure;
+                    if (memRecord.isEmpty()) {
+                        failure = "key-" + i + " is missing after its write returned";
+                    } else if (memRecord.get().valueOffset() != i) {
+                        failure = "key-" + i + " has the record of key-" + memRecord.get().valueOffset();
+                    } else if (memRecord.get().timestamp() < lastVersion[i]) {
+                        failure = "key-" + i + " went back from version " + lastVersion[i] + " to " + memRecord.get().timestamp();
+                    } else {
+                        lastVersion[i] = (byte) memRecord.get().timestamp();
+                        count++;
+                        continue;
+                    }
+
+                    synchronized (failures) {
+                        failures.add(failure);
+                    }
+                    running.set(false);
+                }
+                checks.add(count);
+            }));
+        }
+
+        threads.forEach(Thread::start);
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Keydir stress check failed: " + failures.get(0));
+        }
+        System.out.printf("Stress check passed: %,d keys, %,d checked reads%n%n", STRESS_KEYS, checks.sum());
+    }
+
+    private static KeyDir concurrentHashMap() {
+        final Map<String, MemRecord> map = new ConcurrentHashMap<>();
+        return new KeyDir() {
+            public void write(final String key, final MemRecord memRecord) {
+                map.put(key, memRecord);
+            }
+
+            public MemRecord read(final String key) {
+                return map.get(key);
+            }
+        };
+    }
+
+    private static KeyDir memStore(final Path emptyDir) {
+        final ConcurrentMemStore memStore = new ConcurrentMemStore(emptyDir + "/", false, name -> 0);
+        return new KeyDir() {
+            public void write(final String key, final MemRecord memRecord) {
+                memStore.write(key, memRecord.valueOffset(), memRecord.valueLength(), memRecord.segmentId(),
+                        memRecord.timestamp(), memRecord.size(), memRecord.epoch());
+            }
+
+            public MemRecord read(final String key) {
+                return memStore.read(key).orElse(null);
+            }
+        };
+    }
+}
@@ -156,11 +156,22 @@ public class CommandParser {
 
         final String key = argsString.substring(0, firstSpaceIndex);
         final String value = argsString.substring(firstSpaceIndex + 1).strip();
+        checkWritable(key, value);
 
+        return new Command(PUT, new String[]{key, value});
+    }
+
+    /**
+     * Rejects a key or value the store reserves for its own markers, whichever protocol it came in on.
+     */
+    public static void checkWritable(final String key, final String value) {
         if (value.equals(TOMBSTONE_VALUE) || value.equals(FLUSH_TOMBSTONE_VALUE)) {
             throw new ReservedKeywordException(String.format("%s is a reserved keyword", value));
         }
 
-        return new Command(PUT, new String[]{key, value});
+        // the flush marker is stored under this key
+        if (key.equals(FLUSH_TOMBSTONE_VALUE)) {
+            throw new ReservedKeywordException(String.format("%s is a reserved keyword", key));
+        }
     }
 }
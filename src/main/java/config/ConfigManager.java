@@ -58,4 +58,30 @@ public class ConfigManager {
 
         return defaultValue;
     }
+
+    public long getLongProperty(String key, long defaultValue) {
+        final String value = getProperty(key);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (final NumberFormatException e) {
+                System.err.println("Invalid long format for key '" + key + "': " + value);
+            }
+        }
+
+        return defaultValue;
+    }
+
+    public double getDoubleProperty(String key, double defaultValue) {
+        final String value = getProperty(key);
+        if (value != null) {
+            try {
+                return Double.parseDouble(value);
+            } catch (final NumberFormatException e) {
+                System.err.println("Invalid double format for key '" + key + "': " + value);
+            }
+        }
+
+        return defaultValue;
+    }
 }
@@ -0,0 +1,11 @@
+package exceptions;
+
+/**
+ * Thrown when a write can't be admitted before its deadline because too many bytes are already
+ * waiting to be written. Unlike other errors the client can simply retry later.
+ */
+public class BusyException extends RuntimeException {
+    public BusyException(final String message) {
+        super(message);
+    }
+}
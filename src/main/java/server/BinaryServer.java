@@ -0,0 +1,238 @@
+package server;
+
+import exceptions.BusyException;
+import exceptions.ReservedKeywordException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Serves the binary protocol on its own port, for clients that want values with spaces at the edges
+ * or newlines, and less parsing and fewer bytes per operation than the text protocol. All numbers
+ * are big-endian.
+ * <p>
+ * A request is an opcode (1), a request ID (4), the key length (4), the value length (4), the key
+ * bytes and the value bytes. A response is a status (1), the request's ID (4), a length (4) and
+ * that many bytes: the value for a found GET, the report for STATUS, the message for INVALID and
+ * ERROR, and nothing otherwise. DELETE and EXISTS answer OK if the key was there and NOT_FOUND if
+ * it wasn't. Responses go out as their commands complete, so pipelined commands are matched to
+ * their responses by request ID rather than by position.
+ * <p>
+ * The protocol is not binary-safe: the engine stores keys and values as text, so their bytes have
+ * to be valid UTF-8, and anything else is answered with INVALID. Within that they can hold
+ * anything, spaces and newlines included; other binary data has to be encoded by the client, for
+ * example as Base64.
+ */
+final class BinaryServer {
+    private static final Logger logger = LoggerFactory.getLogger(BinaryServer.class);
+    private static final int BACKLOG = 1000;
+
+    static final byte OP_GET = 0x01;
+    static final byte OP_PUT = 0x02;
+    static final byte OP_FLUSH = 0x03;
+    static final byte OP_STATUS = 0x04;
+    static final byte OP_DELETE = 0x05;
+    static final byte OP_EXISTS = 0x06;
+
+    static final byte STATUS_OK = 0x00;
+    static final byte STATUS_NOT_FOUND = 0x01;
+    // the write wasn't admitted in time; the client should back off and retry
+    static final byte STATUS_BUSY = 0x02;
+    // the request can't be served as sent: an unknown opcode, a reserved key or value, or bytes that aren't UTF-8
+    static final byte STATUS_INVALID = 0x03;
+    static final byte STATUS_ERROR = 0x04;
+
+    static final int RESPONSE_HEADER_SIZE = 1 + 2 * Integer.BYTES;
+    // frames claiming more than this are taken as a broken client and the connection is dropped
+    private static final int MAX_KEY_LENGTH = 64 * 1024;
+    private static final int MAX_VALUE_LENGTH = 64 * 1024 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+
+    private record Request(byte opcode, int id, byte[] key, byte[] value) {}
+
+    private final int port;
+    private final CommandProcessor commandProcessor;
+    private final ExecutorService connectionPool;
+    // writes the responses that storage threads complete, so those never block on a client's socket
+    private final ExecutorService workerPool;
+    private final int maxInFlightPerConnection;
+    private volatile boolean running = true;
+    private ServerSocket serverSocket;
+
+    BinaryServer(final int port, final CommandProcessor commandProcessor, final ExecutorService connectionPool,
+                 final ExecutorService workerPool, final int maxInFlightPerConnection) {
+        this.port = port;
+        this.commandProcessor = commandProcessor;
+        this.connectionPool = connectionPool;
+        this.workerPool = workerPool;
+        this.maxInFlightPerConnection = maxInFlightPerConnection;
+    }
+
+    /**
+     * Accepts connections until {@link #stop} is called, handing each to the connection pool.
+     */
+    void run() {
+        try (ServerSocket socket = new ServerSocket(port, BACKLOG)) {
+            serverSocket = socket;
+            logger.info("MangoServer listening for the binary protocol on port {}", port);
+
+            while (running) {
+                try {
+                    final Socket socketClient = socket.accept();
+                    logger.info("Accepted binary client connection from {}", socketClient.getRemoteSocketAddress());
+                    connectionPool.submit(() -> handleClient(socketClient));
+                } catch (final IOException e) {
+                    if (running) {
+                        logger.error("Error accepting binary client connection: {}", e.getMessage());
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            logger.error("Error listening for the binary protocol {}", e.getMessage());
+        }
+    }
+
+    void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (final IOException e) {
+            logger.debug("Error closing binary listener: {}", e.getMessage());
+        }
+    }
+
+    void handleClient(final Socket socketClient) {
+        try (socketClient) {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socketClient.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socketClient.getOutputStream()));
+
+            // commands of this connection that haven't been answered yet
+            final Semaphore inFlight = new Semaphore(maxInFlightPerConnection);
+            final ReorderBuffer<byte[]> responses = new ReorderBuffer<>(new ReorderBuffer.Output<>() {
+                public void write(final byte[] response) throws IOException {
+                    out.write(response);
+                }
+
+                public void flush() throws IOException {
+                    out.flush();
+                }
+            }, false, inFlight::release, workerPool);
+
+            Request request;
+            while ((request = readRequest(in)) != null) {
+                // at the limit, stop reading until a response goes out, so TCP pushes back on the client
+                inFlight.acquire();
+                responses.add(process(request));
+            }
+
+            inFlight.acquire(maxInFlightPerConnection);
+            logger.info("Binary client at {} disconnected", socketClient.getRemoteSocketAddress());
+        } catch (final IOException e) {
+            logger.info("Dropping binary client at {}: {}", socketClient.getRemoteSocketAddress(), e.getMessage());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private CompletableFuture<byte[]> process(final Request request) {
+        try {
+            final CompletableFuture<byte[]> response = switch (request.opcode()) {
+                case OP_GET -> commandProcessor.get(decode(request.key()))
+                        .thenApply(value -> value == null
+                                ? encodeResponse(STATUS_NOT_FOUND, request.id(), EMPTY)
+                                : encodeResponse(STATUS_OK, request.id(), value.getBytes(StandardCharsets.UTF_8)));
+                case OP_PUT -> commandProcessor.put(decode(request.key()), decode(request.value()))
+                        .thenApply(voidResult -> encodeResponse(STATUS_OK, request.id(), EMPTY));
+                case OP_DELETE -> commandProcessor.delete(decode(request.key()))
+                        .thenApply(deleted -> encodeResponse(deleted ? STATUS_OK : STATUS_NOT_FOUND, request.id(), EMPTY));
+                case OP_EXISTS -> commandProcessor.exists(decode(request.key()))
+                        .thenApply(exists -> encodeResponse(exists ? STATUS_OK : STATUS_NOT_FOUND, request.id(), EMPTY));
+                case OP_FLUSH -> commandProcessor.flush()
+                        .thenApply(voidResult -> encodeResponse(STATUS_OK, request.id(), EMPTY));
+                case OP_STATUS -> CompletableFuture.completedFuture(
+                        encodeResponse(STATUS_OK, request.id(), commandProcessor.status().getBytes(StandardCharsets.UTF_8)));
+                default -> CompletableFuture.completedFuture(
+                        encodeError(STATUS_INVALID, request.id(), "Unknown opcode " + request.opcode()));
+            };
+
+            return response.exceptionally(e -> encodeFailure(request.id(), e));
+        } catch (final RuntimeException | CharacterCodingException e) {
+            return CompletableFuture.completedFuture(encodeFailure(request.id(), e));
+        }
+    }
+
+    // returns null at a clean end of stream, between requests
+    private static Request readRequest(final DataInputStream in) throws IOException {
+        final int opcode = in.read();
+        if (opcode < 0) {
+            return null;
+        }
+
+        final int id = in.readInt();
+        final int keyLength = in.readInt();
+        final int valueLength = in.readInt();
+        if (keyLength < 0 || keyLength > MAX_KEY_LENGTH || valueLength < 0 || valueLength > MAX_VALUE_LENGTH) {
+            throw new IOException("Request " + id + " has a key of " + keyLength + " bytes and a value of " + valueLength + " bytes");
+        }
+
+        final byte[] key = new byte[keyLength];
+        in.readFully(key);
+        final byte[] value = valueLength == 0 ? EMPTY : new byte[valueLength];
+        in.readFully(value);
+
+        return new Request((byte) opcode, id, key, value);
+    }
+
+    // strict, so bytes that aren't UTF-8 are rejected rather than stored as replacement characters
+    static String decode(final byte[] bytes) throws CharacterCodingException {
+        return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(ByteBuffer.wrap(bytes))
+                .toString();
+    }
+
+    private static byte[] encodeFailure(final int id, final Throwable failure) {
+        final Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+        if (cause instanceof BusyException) {
+            return encodeResponse(STATUS_BUSY, id, EMPTY);
+        }
+        if (cause instanceof ReservedKeywordException || cause instanceof CharacterCodingException) {
+            return encodeError(STATUS_INVALID, id, cause instanceof CharacterCodingException
+                    ? "Keys and values have to be valid UTF-8" : cause.getMessage());
+        }
+
+        logger.error("Error processing binary request {}: {}", id, cause.getMessage());
+        return encodeError(STATUS_ERROR, id, String.valueOf(cause.getMessage()));
+    }
+
+    private static byte[] encodeError(final byte status, final int id, final String message) {
+        return encodeResponse(status, id, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] encodeResponse(final byte status, final int id, final byte[] payload) {
+        return ByteBuffer.allocate(RESPONSE_HEADER_SIZE + payload.length)
+                .put(status)
+                .putInt(id)
+                .putInt(payload.length)
+                .put(payload)
+                .array();
+    }
+}
@@ -3,6 +3,7 @@ package server;
 import commands.Command;
 import commands.CommandParser;
 import config.ConfigManager;
+import exceptions.BusyException;
 import jdk.jshell.SourceCodeAnalysis;
 import replication.ReplicationManager;
 import storage.MultiThreadedStorageEngine;
@@ -28,6 +29,8 @@ public class CommandProcessor {
 
     public static final String RESPONSE_INVALID_INPUT = "INVALID INPUT";
     public static final String RESPONSE_OK = "OK";
+    // the write wasn't admitted in time; the client should back off and retry
+    public static final String RESPONSE_BUSY = "BUSY";
     private static final String RESPONSE_NOT_FOUND = "NOT FOUND";
     public static final String RESERVED_KEYWORD_TOMBSTONE = "RESERVED KEYWORD __TOMBSTONE__";
     private static final String CMD_STATUS = "STATUS";
@@ -52,6 +55,7 @@ public class CommandProcessor {
         ConfigManager configManager = new ConfigManager("config.properties");
         String engineType = configManager.getProperty("storage.type");
         returnKeysOnWrite = configManager.getBooleanProperty("return.key.on.writes", false);
+        startTime = System.currentTimeMillis();
         switch (engineType) {
             case "single" -> storageEngine = new SingleThreadedStorageEngine();
             case "multi" -> storageEngine = new MultiThreadedStorageEngine();
@@ -65,6 +69,13 @@ public class CommandProcessor {
         replicationManager = new ReplicationManager();
     }
 
+    // a standalone node over the given engine, without replication
+    CommandProcessor(final StorageEngine storageEngine) {
+        this.storageEngine = storageEngine;
+        this.serverRole = ServerRole.STANDALONE;
+        startTime = System.currentTimeMillis();
+    }
+
     public ServerRole getRole() {
         return serverRole;
     }
@@ -80,21 +91,21 @@ public class CommandProcessor {
             return switch (command.type()) {
                 case PUT -> handlePut(command.args());
                 case GET -> handleGet(command.args());
+                case DELETE -> handleDelete(command.args());
+                case EXISTS -> handleExists(command.args());
+                case FLUSH -> handleFlush();
+                case STATUS -> handleStatus();
                 default -> CompletableFuture.completedFuture(String.format(WRAP_RED, "ERROR: " + RESPONSE_INVALID_INPUT));
             };
+        } catch (final BusyException e) {
+            return CompletableFuture.completedFuture(String.format(WRAP_RED, RESPONSE_BUSY));
         } catch (final Exception e) {
             return CompletableFuture.completedFuture(String.format(WRAP_RED, "ERROR: " + e.getMessage()));
         }
     }
 
     private CompletableFuture<String> handlePut(final String[] args) {
-        final CompletableFuture<Void> responseFuture = storageEngine.write(args[0], args[1]);
-
-        return responseFuture.thenApply(voidResult -> {
-            if (serverRole == ServerRole.PRIMARY) {
-                replicationManager.asyncReplicate(args[0], args[1]);
-            }
-
+        return put(args[0], args[1]).thenApply(voidResult -> {
             if (returnKeysOnWrite) {
                 return args[0];
             } else {
@@ -103,6 +114,26 @@ public class CommandProcessor {
         }).exceptionally(e -> String.format(WRAP_RED, "ERROR: " + e.getMessage()));
     }
 
+    private CompletableFuture<String> handleDelete(final String[] args) {
+        return delete(args[0])
+                .thenApply(deleted -> deleted ? String.format(WRAP_GREEN, RESPONSE_OK) : String.format(WRAP_RED, RESPONSE_NOT_FOUND))
+                .exceptionally(e -> String.format(WRAP_RED, "ERROR: " + e.getMessage()));
+    }
+
+    private CompletableFuture<String> handleExists(final String[] args) {
+        return exists(args[0]).thenApply(String::valueOf);
+    }
+
+    private CompletableFuture<String> handleFlush() {
+        return flush()
+                .thenApply(voidResult -> String.format(WRAP_GREEN, RESPONSE_OK))
+                .exceptionally(e -> String.format(WRAP_RED, "ERROR: " + e.getMessage()));
+    }
+
+    private CompletableFuture<String> handleStatus() {
+        return CompletableFuture.completedFuture(String.format(WRAP_CYAN, status()));
+    }
+
     private CompletableFuture<String> handleGet(final String[] args) {
         final CompletableFuture<String> readFuture = storageEngine.read(args[0]);
 
@@ -115,4 +146,56 @@ public class CommandProcessor {
                 return String.format(WRAP_YELLOW, value);
         });
     }
+
+    // the operations below are shared by the other wire protocols, which do their own parsing and replies
+
+    /**
+     * Writes a key, replicating it once it's stored if this node is the primary.
+     */
+    CompletableFuture<Void> put(final String key, final String value) {
+        CommandParser.checkWritable(key, value);
+
+        return storageEngine.write(key, value).thenRun(() -> {
+            if (serverRole == ServerRole.PRIMARY) {
+                replicationManager.asyncReplicate(key, value);
+            }
+        });
+    }
+
+    /**
+     * Completes with the key's value, or null if it isn't there.
+     */
+    CompletableFuture<String> get(final String key) {
+        return storageEngine.read(key);
+    }
+
+    /**
+     * Deletes a key, completing with whether it was there. The check and the delete aren't one
+     * step, so a write of the key racing the delete can land on either side of it.
+     */
+    CompletableFuture<Boolean> delete(final String key) {
+        CommandParser.checkWritable(key, "");
+
+        return storageEngine.read(key).thenCompose(value -> value == null
+                ? CompletableFuture.completedFuture(false)
+                : storageEngine.delete(key).thenApply(voidResult -> true));
+    }
+
+    CompletableFuture<Boolean> exists(final String key) {
+        return storageEngine.read(key).thenApply(value -> value != null);
+    }
+
+    CompletableFuture<Void> flush() {
+        return storageEngine.flush();
+    }
+
+    String status() {
+        final long timeFromStartSeconds = (System.currentTimeMillis() - startTime) / 1000;
+
+        return String.format("""
+                MangoDB Node Status
+                ─────────────────────────────
+                Uptime:              %d seconds
+                %s""", timeFromStartSeconds, storageEngine.getStatus());
+    }
 }
@@ -0,0 +1,476 @@
+package server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import static server.CommandProcessor.WRAP_RED;
+
+/**
+ * Non-blocking alternative to one thread per connection ({@code server.mode=nio}). A few event
+ * loops, each with its own {@link Selector}, own the connections between them: a loop reads
+ * whatever has arrived, cuts it into lines, hands every complete line to a worker and writes
+ * responses back as they complete, asking for write interest only when the socket can't take them
+ * all. Commands never run on a loop, since a disk read or a write waiting for admission would stall
+ * every connection of the loop. An idle connection costs a registration and nothing else; buffers
+ * are only kept for half-read lines and unsent responses.
+ * <p>
+ * Connections are accepted either by the first loop and handed out round-robin, or, with
+ * {@code SO_REUSEPORT}, by every loop on its own listening socket, leaving the spread to the kernel.
+ * <p>
+ * Like the threaded server, a connection with {@code server.connection.max.inflight} commands
+ * unanswered isn't read from until a response goes out. With ordered responses, commands are
+ * still pipelined but their responses go out in the order the commands came in.
+ */
+final class EventLoopServer {
+    private static final Logger logger = LoggerFactory.getLogger(EventLoopServer.class);
+    private static final int BACKLOG = 1000;
+    // shared by the connections of a loop; a connection only gets its own buffer for leftovers
+    private static final int LOOP_BUFFER_SIZE = 64 * 1024;
+    private static final int MIN_CONNECTION_BUFFER_SIZE = 4 * 1024;
+    private static final byte NEWLINE = '\n';
+
+    private final int port;
+    private final CommandProcessor commandProcessor;
+    private final ExecutorService workers;
+    private final int maxInFlight;
+    private final boolean orderedResponse;
+    private final boolean reusePort;
+    private final EventLoop[] loops;
+    private final List<ServerSocketChannel> listeners = new ArrayList<>();
+    private volatile boolean running = true;
+    // accepting loop only
+    private int nextLoop;
+
+    EventLoopServer(final int port, final CommandProcessor commandProcessor, final ExecutorService workers,
+                    final int loopCount, final boolean reusePort, final int maxInFlight,
+                    final boolean orderedResponse) throws IOException {
+        this.port = port;
+        this.commandProcessor = commandProcessor;
+        this.workers = workers;
+        this.maxInFlight = maxInFlight;
+        this.orderedResponse = orderedResponse;
+        this.reusePort = reusePort && supportsReusePort();
+        if (reusePort && !this.reusePort) {
+            logger.warn("SO_REUSEPORT isn't supported here, accepting all connections on one loop");
+        }
+
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop("server-loop-" + i);
+        }
+    }
+
+    /**
+     * Starts listening and runs the loops until {@link #stop} is called.
+     */
+    void run() throws IOException, InterruptedException {
+        for (int i = 0; i < loops.length; i++) {
+            if (i == 0 || this.reusePort) {
+                final ServerSocketChannel listener = ServerSocketChannel.open();
+                if (this.reusePort) {
+                    listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                listener.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                listener.bind(new InetSocketAddress(port), BACKLOG);
+                listener.configureBlocking(false);
+                listener.register(loops[i].selector, SelectionKey.OP_ACCEPT);
+                listeners.add(listener);
+            }
+        }
+        logger.info("MangoServer listening on port {} with {} event loops{}", port, loops.length,
+                this.reusePort ? " (SO_REUSEPORT)" : "");
+
+        for (final EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        for (final EventLoop loop : loops) {
+            loop.thread.join();
+        }
+    }
+
+    void stop() {
+        running = false;
+        for (final EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    private static boolean supportsReusePort() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(LOOP_BUFFER_SIZE);
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(LOOP_BUFFER_SIZE);
+        // handed over by the accepting loop
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        // connections with responses to send, marked by whichever thread completed them
+        private final Queue<Connection> ready = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+        EventLoop(final String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    // cleared before draining: a completion after this point wakes the next select
+                    wakeupPending.set(false);
+
+                    registerAccepted();
+                    final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+
+                    Connection connection;
+                    while ((connection = ready.poll()) != null) {
+                        connection.flush();
+                    }
+                } catch (final IOException e) {
+                    logger.error("Event loop {} failed: {}", thread.getName(), e.getMessage());
+                }
+            }
+
+            for (final SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            closeQuietly(selector);
+        }
+
+        private void handle(final SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+
+            if (key.isAcceptable()) {
+                accept((ServerSocketChannel) key.channel());
+                return;
+            }
+
+            final Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    connection.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+            } catch (final IOException e) {
+                logger.debug("Closing connection {}: {}", connection.channel, e.getMessage());
+                connection.close();
+            }
+        }
+
+        private void accept(final ServerSocketChannel listener) {
+            SocketChannel channel;
+            try {
+                while ((channel = listener.accept()) != null) {
+                    logger.debug("Accepted client connection from {}", channel.getRemoteAddress());
+                    if (reusePort) {
+                        register(channel);
+                    } else {
+                        final EventLoop owner = loops[nextLoop];
+                        nextLoop = (nextLoop + 1) % loops.length;
+                        if (owner == this) {
+                            register(channel);
+                        } else {
+                            owner.accepted.add(channel);
+                            owner.selector.wakeup();
+                        }
+                    }
+                }
+            } catch (final IOException e) {
+                if (running) {
+                    logger.error("Error accepting client connection: {}", e.getMessage());
+                }
+            }
+        }
+
+        private void registerAccepted() {
+            SocketChannel channel;
+            while ((channel = accepted.poll()) != null) {
+                register(channel);
+            }
+        }
+
+        private void register(final SocketChannel channel) {
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                final Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (final IOException e) {
+                logger.error("Unable to register client connection: {}", e.getMessage());
+                closeQuietly(channel);
+            }
+        }
+
+        // called from any thread once one of the connection's responses is done
+        void markReady(final Connection connection) {
+            ready.add(connection);
+            if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * One client connection. Everything but the completion callbacks runs on its loop's thread.
+     */
+    private final class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        // bytes read but not yet taken as commands, only kept while there are any
+        private ByteBuffer input;
+        // encoded responses the socket didn't take yet, only kept while there are any
+        private ByteBuffer output;
+        private int inFlight;
+        // the last command handed to the workers; the next one waits for it to be submitted, so the
+        // connection's commands still reach the storage engine in the order they came in
+        private CompletableFuture<?> lastDispatch = CompletableFuture.completedFuture(null);
+        // ordered responses: the commands in arrival order, answered from the head
+        private final ArrayDeque<CompletableFuture<String>> pending = new ArrayDeque<>();
+        // unordered responses: whatever has completed, in completion order
+        private final Queue<String> completed = new ConcurrentLinkedQueue<>();
+
+        Connection(final EventLoop loop, final SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            final ByteBuffer buffer = input != null ? input : loop.readBuffer;
+            if (!buffer.hasRemaining()) {
+                // a line longer than the buffer; grow it like BufferedReader would
+                input = grow(buffer, buffer.capacity() * 2);
+                read();
+                return;
+            }
+
+            final int count = channel.read(buffer);
+            if (count < 0) {
+                logger.debug("Client at {} disconnected", channel.getRemoteAddress());
+                close();
+                return;
+            }
+
+            processInput(buffer);
+        }
+
+        // takes every complete line in the buffer (in write mode) as a command, keeping the rest for later
+        private void processInput(final ByteBuffer buffer) {
+            final byte[] bytes = buffer.array();
+            final int end = buffer.position();
+            int start = 0;
+            for (int i = 0; i < end && inFlight < maxInFlight; i++) {
+                if (bytes[i] != NEWLINE) {
+                    continue;
+                }
+
+                final int lineEnd = i > start && bytes[i - 1] == '\r' ? i - 1 : i;
+                submit(new String(bytes, start, lineEnd - start, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+
+            if (start == end) {
+                buffer.clear();
+                if (buffer == input) {
+                    input = null;
+                }
+            } else if (buffer == input) {
+                buffer.flip().position(start);
+                buffer.compact();
+            } else {
+                // leftovers move out of the loop's buffer into the connection's own
+                input = ByteBuffer.allocate(Math.max(MIN_CONNECTION_BUFFER_SIZE, (end - start) * 2));
+                input.put(bytes, start, end - start);
+                buffer.clear();
+            }
+
+            updateInterest();
+        }
+
+        private void submit(final String line) {
+            inFlight++;
+            final CompletableFuture<CompletableFuture<String>> dispatch =
+                    lastDispatch.thenApplyAsync(voidResult -> process(line), workers);
+            lastDispatch = dispatch;
+            final CompletableFuture<String> response = dispatch.thenCompose(Function.identity())
+                    .exceptionally(e -> {
+                        logger.error("Error processing command: {}", e.getMessage());
+                        return String.format(WRAP_RED, "ERROR: " + e.getMessage());
+                    });
+
+            if (orderedResponse) {
+                pending.add(response);
+                response.whenComplete((result, e) -> loop.markReady(this));
+            } else {
+                response.whenComplete((result, e) -> {
+                    completed.add(result);
+                    loop.markReady(this);
+                });
+            }
+        }
+
+        // on a worker; a failure becomes the command's response rather than stopping the commands after it
+        private CompletableFuture<String> process(final String line) {
+            try {
+                return commandProcessor.process(line);
+            } catch (final RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        /**
+         * Sends whatever responses are done, keeping what the socket won't take for write interest.
+         */
+        void flush() {
+            if (!channel.isOpen()) {
+                return;
+            }
+
+            try {
+                int answered = 0;
+                String response;
+                while ((response = nextResponse()) != null) {
+                    answered++;
+                    append(response);
+                }
+                inFlight -= answered;
+
+                final ByteBuffer pendingOutput = output != null ? output : loop.writeBuffer;
+                pendingOutput.flip();
+                channel.write(pendingOutput);
+                if (pendingOutput.hasRemaining()) {
+                    if (output == null) {
+                        output = ByteBuffer.allocate(Math.max(MIN_CONNECTION_BUFFER_SIZE, pendingOutput.remaining() * 2));
+                        output.put(pendingOutput);
+                        loop.writeBuffer.clear();
+                    } else {
+                        output.compact();
+                    }
+                } else {
+                    pendingOutput.clear();
+                    output = null;
+                }
+
+                // commands held back by the in-flight limit can go now
+                if (answered > 0 && input != null && inFlight < maxInFlight) {
+                    processInput(input);
+                } else {
+                    updateInterest();
+                }
+            } catch (final IOException e) {
+                logger.debug("Closing connection {}: {}", channel, e.getMessage());
+                close();
+            }
+        }
+
+        private String nextResponse() {
+            if (!orderedResponse) {
+                return completed.poll();
+            }
+
+            final CompletableFuture<String> head = pending.peek();
+            if (head == null || !head.isDone()) {
+                return null;
+            }
+
+            pending.poll();
+            return head.join();
+        }
+
+        // the response and its line break go into whichever buffer is collecting output
+        private void append(final String response) {
+            final byte[] bytes = (response + "\n").getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buffer = output != null ? output : loop.writeBuffer;
+            if (buffer.remaining() < bytes.length) {
+                output = grow(buffer, Math.max(buffer.capacity() * 2, buffer.position() + bytes.length));
+                if (buffer == loop.writeBuffer) {
+                    loop.writeBuffer.clear();
+                }
+                buffer = output;
+            }
+            buffer.put(bytes);
+        }
+
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+
+            int ops = 0;
+            if (inFlight < maxInFlight) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (output != null) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+
+        void close() {
+            closeQuietly(key);
+            input = null;
+            output = null;
+        }
+    }
+
+    // copies a buffer in write mode into a bigger heap buffer, still in write mode
+    private static ByteBuffer grow(final ByteBuffer buffer, final int capacity) {
+        final ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    private static void closeQuietly(final SelectionKey key) {
+        key.cancel();
+        closeQuietly(key.channel());
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (final IOException e) {
+            logger.debug("Error closing {}: {}", closeable, e.getMessage());
+        }
+    }
+}
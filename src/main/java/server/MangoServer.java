@@ -6,16 +6,20 @@ import org.slf4j.LoggerFactory;
 import tree.ServerRole;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
+import static server.CommandProcessor.WRAP_RED;
+
 public class MangoServer {
 
     private static final Logger logger = LoggerFactory.getLogger(MangoServer.class);
@@ -23,21 +27,40 @@ public class MangoServer {
 
     private final int port;
     private final ExecutorService threadPool;
+    // runs commands handed off the threads that read them, and writes the responses that storage
+    // threads complete, so those never block on a client's socket
+    private final ExecutorService workerPool;
     private final int threadCount;
     private final CommandProcessor commandProcessor;
     private final boolean orderedResponse;
+    private final int maxInFlightPerConnection;
+    private final String mode;
+    private final int eventLoops;
+    private final boolean reusePort;
+    private final int binaryPort;
+    private final int respPort;
 
     private boolean running = true;
+    private EventLoopServer eventLoopServer;
+    private BinaryServer binaryServer;
+    private RespServer respServer;
 
 
     public MangoServer() throws IOException {
         ConfigManager manager = new ConfigManager("config.properties");
         this.port = manager.getIntProperty("port", 8080);
 
-        threadCount = manager.getIntProperty("server.threads", 1);
-        this.threadPool = Executors.newFixedThreadPool(threadCount);
-
         this.orderedResponse = manager.getBooleanProperty("ordered.response", false);
+        this.maxInFlightPerConnection = manager.getIntProperty("server.connection.max.inflight", 1024);
+
+        this.mode = manager.getProperty("server.mode", "threads");
+        threadCount = manager.getIntProperty("server.threads", 1);
+        this.threadPool = newConnectionPool(mode, threadCount);
+        this.workerPool = newWorkerPool(mode, manager.getIntProperty("server.workers", Runtime.getRuntime().availableProcessors()));
+        this.eventLoops = manager.getIntProperty("server.nio.loops", Runtime.getRuntime().availableProcessors());
+        this.reusePort = manager.getBooleanProperty("server.nio.reuseport", false);
+        this.binaryPort = manager.getIntProperty("server.binary.port", 0);
+        this.respPort = manager.getIntProperty("server.resp.port", 0);
 
         this.commandProcessor = new CommandProcessor();
         registerShutdownHook();
@@ -48,15 +71,40 @@ public class MangoServer {
 
         ConfigManager manager = new ConfigManager("config.properties");
 
-        threadCount = manager.getIntProperty("server.threads", 1);
-        this.threadPool = Executors.newFixedThreadPool(threadCount);
-
         this.orderedResponse = manager.getBooleanProperty("ordered.response", false);
+        this.maxInFlightPerConnection = manager.getIntProperty("server.connection.max.inflight", 1024);
+
+        this.mode = manager.getProperty("server.mode", "threads");
+        threadCount = manager.getIntProperty("server.threads", 1);
+        this.threadPool = newConnectionPool(mode, threadCount);
+        this.workerPool = newWorkerPool(mode, manager.getIntProperty("server.workers", Runtime.getRuntime().availableProcessors()));
+        this.eventLoops = manager.getIntProperty("server.nio.loops", Runtime.getRuntime().availableProcessors());
+        this.reusePort = manager.getBooleanProperty("server.nio.reuseport", false);
+        this.binaryPort = manager.getIntProperty("server.binary.port", 0);
+        this.respPort = manager.getIntProperty("server.resp.port", 0);
 
         this.commandProcessor = new CommandProcessor(ServerRole.valueOf(role.toUpperCase()));
         registerShutdownHook();
     }
 
+    // virtual mode runs every connection on its own virtual thread, so there's no cap on connections
+    private static ExecutorService newConnectionPool(final String mode, final int threadCount) {
+        if (mode.equals("virtual")) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+
+        return Executors.newFixedThreadPool(threadCount);
+    }
+
+    // kept apart from the connection pool, whose threads can all be held by open connections
+    private static ExecutorService newWorkerPool(final String mode, final int workerCount) {
+        if (mode.equals("virtual")) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+
+        return Executors.newFixedThreadPool(workerCount);
+    }
+
     private void registerShutdownHook() {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             logger.info("Shutdown hook triggered!");
@@ -66,7 +114,17 @@ public class MangoServer {
 
     private void shutdown() {
         running = false;
+        if (eventLoopServer != null) {
+            eventLoopServer.stop();
+        }
+        if (binaryServer != null) {
+            binaryServer.stop();
+        }
+        if (respServer != null) {
+            respServer.stop();
+        }
         threadPool.shutdown();
+        workerPool.shutdown();
         logger.info("Shutting down MangoServer...");
 
         try {
@@ -82,10 +140,40 @@ public class MangoServer {
 
     public void start() {
         logger.info("MangoServer starting...");
-        logger.info("Server thread count: {}", threadCount);
+        logger.info("Server mode: {}", mode);
+        if (!mode.equals("virtual")) {
+            logger.info("Server thread count: {}", threadCount);
+        }
         logger.info("Ordered response: {}", orderedResponse);
         logger.info("Role: {}", commandProcessor.getRole());
-        runServer();
+        if (binaryPort > 0) {
+            binaryServer = new BinaryServer(binaryPort, commandProcessor, threadPool, workerPool, maxInFlightPerConnection);
+            new Thread(binaryServer::run, "binary-acceptor").start();
+        }
+        if (respPort > 0) {
+            respServer = new RespServer(respPort, commandProcessor, threadPool, workerPool, maxInFlightPerConnection);
+            new Thread(respServer::run, "resp-acceptor").start();
+        }
+        switch (mode) {
+            case "threads", "virtual" -> runServer();
+            case "nio" -> runEventLoopServer();
+            default -> throw new UnsupportedOperationException("Unsupported server mode specified");
+        }
+    }
+
+    private void runEventLoopServer() {
+        try {
+            eventLoopServer = new EventLoopServer(port, commandProcessor, workerPool, eventLoops, reusePort,
+                    maxInFlightPerConnection, orderedResponse);
+            eventLoopServer.run();
+        } catch (final IOException e) {
+            logger.error("Error running event loop server {}", e.getMessage());
+            throw new RuntimeException("Error running event loop server", e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            shutdown();
+        }
     }
 
     private void runServer() {
@@ -118,29 +206,27 @@ public class MangoServer {
         logger.debug("Client at {} assigned to thread {}", socketClient.getRemoteSocketAddress(), Thread.currentThread().getName());
         try (socketClient) {
             final BufferedReader in = new BufferedReader(new InputStreamReader(socketClient.getInputStream()));
-            final PrintWriter out = new PrintWriter(socketClient.getOutputStream(), true);
+            final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socketClient.getOutputStream())));
+
+            // commands of this connection that haven't been answered yet
+            final Semaphore inFlight = new Semaphore(maxInFlightPerConnection);
+            final ReorderBuffer<String> responses = new ReorderBuffer<>(ReorderBuffer.lines(out), orderedResponse, inFlight::release,
+                    workerPool);
 
             String line;
             while ((line = in.readLine()) != null) {
                 // logger.debug("received: {}", line);
-                 final CompletableFuture<String> response = commandProcessor.process(line)
-                         .thenApply(result -> {
-                            out.println(result);
-                            return result;
-                        })
+                // at the limit, stop reading until a response goes out, so TCP pushes back on the client
+                inFlight.acquire();
+                responses.add(commandProcessor.process(line)
                         .exceptionally(e -> {
                             logger.error("Error processing command: {}", e.getMessage());
-                            throw new RuntimeException(e);
-                        });
-
-                // If the server is configured to return ordered responses,
-                // wait for the response to be sent before accepting the next command
-                if (orderedResponse) {
-                    response.join();
-                    out.flush();
-                }
+                            return String.format(WRAP_RED, "ERROR: " + e.getMessage());
+                        }));
             }
 
+            // a client that only shut down its output still gets the answers to what it sent
+            inFlight.acquire(maxInFlightPerConnection);
             logger.info("Client at {} disconnected", socketClient.getRemoteSocketAddress());
         } catch (final IOException e) {
             System.out.println("Error handling client: " + e.getMessage());
@@ -0,0 +1,131 @@
+package server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes a connection's responses as their commands complete, without the reading thread waiting
+ * for any of them. With ordered responses, a response that completes early waits in the buffer
+ * until every command before it has been answered, so clients can pipeline and still match
+ * responses to commands by position; otherwise responses go out in completion order.
+ * <p>
+ * Only one thread writes at a time: whichever completion finds the buffer idle drains everything
+ * that can go out, including what completes meanwhile, and flushes once at the end, so a burst of
+ * responses costs one flush instead of one per line.
+ * <p>
+ * Writes block once a client stops reading and its socket buffer fills up, so they never run on
+ * the thread that completes a command, which for writes is a partition's storage write thread:
+ * a response that is already done when it's added is drained by the connection's own thread, and
+ * any other by the writer executor.
+ */
+final class ReorderBuffer<T> {
+    private final Output<T> out;
+    private final boolean ordered;
+    private final Runnable onWritten;
+    private final Executor writer;
+    // ordered: every command in arrival order; unordered: only the completed ones, in completion order
+    private final Queue<CompletableFuture<T>> responses = new ConcurrentLinkedQueue<>();
+    // the connection is gone; responses are still taken off so the reading thread isn't held up
+    private boolean broken;
+    // drain requests not yet served; the thread that moves it off zero drains until it's back to zero
+    private final AtomicInteger drains = new AtomicInteger();
+
+    interface Output<T> {
+        void write(T response) throws IOException;
+
+        void flush() throws IOException;
+    }
+
+    /**
+     * @param out        flushed once per drained batch
+     * @param onWritten  called for each response once it's written and flushed
+     * @param writer     drains the responses that complete after they're added
+     */
+    ReorderBuffer(final Output<T> out, final boolean ordered, final Runnable onWritten, final Executor writer) {
+        this.out = out;
+        this.ordered = ordered;
+        this.onWritten = onWritten;
+        this.writer = writer;
+    }
+
+    /**
+     * Queues the response of the connection's next command. Must be called in command order, by the
+     * connection's reading thread.
+     */
+    void add(final CompletableFuture<T> response) {
+        if (response.isDone()) {
+            responses.add(response);
+            drain();
+        } else if (ordered) {
+            responses.add(response);
+            response.whenCompleteAsync((result, e) -> drain(), writer);
+        } else {
+            response.whenCompleteAsync((result, e) -> {
+                responses.add(response);
+                drain();
+            }, writer);
+        }
+    }
+
+    private void drain() {
+        if (drains.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            int written = 0;
+            CompletableFuture<T> head;
+            while ((head = responses.peek()) != null && head.isDone()) {
+                responses.poll();
+                write(head.join());
+                written++;
+            }
+
+            if (written > 0 && !broken) {
+                try {
+                    out.flush();
+                } catch (final IOException e) {
+                    broken = true;
+                }
+            }
+            // only once flushed, so a connection closed when everything is written loses nothing
+            for (int i = 0; i < written; i++) {
+                onWritten.run();
+            }
+            missed = drains.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void write(final T response) {
+        if (broken) {
+            return;
+        }
+
+        try {
+            out.write(response);
+        } catch (final IOException e) {
+            broken = true;
+        }
+    }
+
+    /**
+     * Writes text responses one per line. The writer shouldn't auto-flush.
+     */
+    static Output<String> lines(final PrintWriter writer) {
+        return new Output<>() {
+            public void write(final String response) {
+                writer.println(response);
+            }
+
+            public void flush() {
+                writer.flush();
+            }
+        };
+    }
+}
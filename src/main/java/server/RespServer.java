@@ -0,0 +1,455 @@
+package server;
+
+import commands.CommandParser;
+import exceptions.BusyException;
+import exceptions.ReservedKeywordException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Serves the Redis protocol (RESP2) on its own port, so Redis clients, connection pools and
+ * redis-benchmark can talk to the store. GET, SET, DEL, EXISTS, MGET, MSET and FLUSHDB map onto
+ * the storage engine, plus PING and QUIT for clients that expect them; SET takes no options.
+ * <p>
+ * Commands come in as arrays of bulk strings, or as inline commands for telnet-style use. They are
+ * pipelined: a connection's commands run concurrently, up to {@code server.connection.max.inflight},
+ * and their replies go out in command order, as Redis clients expect. A command waits only for the
+ * connection's earlier commands on the same keys, and FLUSHDB for all of them, so each connection
+ * still sees its own commands take effect in the order it sent them.
+ */
+final class RespServer {
+    private static final Logger logger = LoggerFactory.getLogger(RespServer.class);
+    private static final int BACKLOG = 1000;
+    // longer array headers, bulk strings or inline commands are taken as a broken client
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_BULK_LENGTH = 64 * 1024 * 1024;
+    private static final int MAX_ARGUMENTS = 1024 * 1024;
+
+    private static final byte[] OK = "+OK\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PONG = "+PONG\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NIL = "$-1\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final Set<String> KEYED_COMMANDS = Set.of("GET", "SET", "DEL", "EXISTS", "MGET", "MSET");
+
+    private final int port;
+    private final CommandProcessor commandProcessor;
+    private final ExecutorService connectionPool;
+    // runs commands that waited for earlier ones, rather than the storage thread that finished those,
+    // and writes the replies those threads complete
+    private final ExecutorService workerPool;
+    private final int maxInFlightPerConnection;
+    private volatile boolean running = true;
+    private ServerSocket serverSocket;
+
+    RespServer(final int port, final CommandProcessor commandProcessor, final ExecutorService connectionPool,
+               final ExecutorService workerPool, final int maxInFlightPerConnection) {
+        this.port = port;
+        this.commandProcessor = commandProcessor;
+        this.connectionPool = connectionPool;
+        this.workerPool = workerPool;
+        this.maxInFlightPerConnection = maxInFlightPerConnection;
+    }
+
+    /**
+     * Accepts connections until {@link #stop} is called, handing each to the connection pool.
+     */
+    void run() {
+        try (ServerSocket socket = new ServerSocket(port, BACKLOG)) {
+            serverSocket = socket;
+            logger.info("MangoServer listening for RESP on port {}", port);
+
+            while (running) {
+                try {
+                    final Socket socketClient = socket.accept();
+                    logger.info("Accepted RESP client connection from {}", socketClient.getRemoteSocketAddress());
+                    connectionPool.submit(() -> handleClient(socketClient));
+                } catch (final IOException e) {
+                    if (running) {
+                        logger.error("Error accepting RESP client connection: {}", e.getMessage());
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            logger.error("Error listening for RESP {}", e.getMessage());
+        }
+    }
+
+    void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (final IOException e) {
+            logger.debug("Error closing RESP listener: {}", e.getMessage());
+        }
+    }
+
+    void handleClient(final Socket socketClient) {
+        try (socketClient) {
+            final InputStream in = new BufferedInputStream(socketClient.getInputStream());
+            final OutputStream out = new BufferedOutputStream(socketClient.getOutputStream());
+
+            // commands of this connection that haven't been answered yet
+            final Semaphore inFlight = new Semaphore(maxInFlightPerConnection);
+            // the last unfinished command of this connection on each key
+            final Map<String, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+            final ReorderBuffer<byte[]> replies = new ReorderBuffer<>(new ReorderBuffer.Output<>() {
+                public void write(final byte[] reply) throws IOException {
+                    out.write(reply);
+                }
+
+                public void flush() throws IOException {
+                    out.flush();
+                }
+            }, true, inFlight::release, workerPool);
+
+            try {
+                byte[][] next;
+                while ((next = readCommand(in)) != null) {
+                    final byte[][] command = next;
+                    if (command.length == 0) {
+                        continue;
+                    }
+
+                    // at the limit, stop reading until a reply goes out, so TCP pushes back on the client
+                    inFlight.acquire();
+                    final String name = new String(command[0], StandardCharsets.US_ASCII).toUpperCase(Locale.ROOT);
+                    if (name.equals("QUIT")) {
+                        replies.add(CompletableFuture.completedFuture(OK));
+                        break;
+                    }
+                    if (name.equals("FLUSHDB") || name.equals("FLUSHALL")) {
+                        // a barrier: everything sent before goes first, and everything after waits for it
+                        inFlight.release();
+                        inFlight.acquire(maxInFlightPerConnection);
+                        inFlight.release(maxInFlightPerConnection - 1);
+                        final CompletableFuture<byte[]> reply = process(name, command);
+                        reply.join();
+                        replies.add(reply);
+                        continue;
+                    }
+                    replies.add(afterSameKeys(pending, keysOf(name, command), () -> process(name, command)));
+                }
+            } catch (final ProtocolException e) {
+                inFlight.acquire();
+                replies.add(CompletableFuture.completedFuture(error("ERR Protocol error: " + e.getMessage())));
+            }
+
+            inFlight.acquire(maxInFlightPerConnection);
+            logger.info("RESP client at {} disconnected", socketClient.getRemoteSocketAddress());
+        } catch (final IOException e) {
+            logger.info("Dropping RESP client at {}: {}", socketClient.getRemoteSocketAddress(), e.getMessage());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private CompletableFuture<byte[]> process(final String name, final byte[][] command) {
+        try {
+            final CompletableFuture<byte[]> reply = switch (name) {
+                case "GET" -> {
+                    checkArity(name, command, command.length == 2);
+                    yield commandProcessor.get(BinaryServer.decode(command[1])).thenApply(RespServer::bulk);
+                }
+                case "SET" -> {
+                    checkArity(name, command, command.length >= 3);
+                    if (command.length > 3) {
+                        yield CompletableFuture.completedFuture(error("ERR SET options are not supported"));
+                    }
+                    yield commandProcessor.put(BinaryServer.decode(command[1]), BinaryServer.decode(command[2]))
+                            .thenApply(voidResult -> OK);
+                }
+                case "DEL" -> {
+                    checkArity(name, command, command.length >= 2);
+                    // a key named twice is still deleted once
+                    yield count(keys(command).stream().distinct().toList(), commandProcessor::delete);
+                }
+                case "EXISTS" -> {
+                    checkArity(name, command, command.length >= 2);
+                    yield count(keys(command), commandProcessor::exists);
+                }
+                case "MGET" -> {
+                    checkArity(name, command, command.length >= 2);
+                    yield mget(command);
+                }
+                case "MSET" -> {
+                    checkArity(name, command, command.length >= 3 && command.length % 2 == 1);
+                    yield mset(command);
+                }
+                // there is one database, so FLUSHALL is the same thing; ASYNC and SYNC are both constant time here
+                case "FLUSHDB", "FLUSHALL" -> commandProcessor.flush().thenApply(voidResult -> OK);
+                case "PING" -> CompletableFuture.completedFuture(command.length > 1 ? bulk(command[1]) : PONG);
+                default -> CompletableFuture.completedFuture(error("ERR unknown command '" + name.toLowerCase(Locale.ROOT) + "'"));
+            };
+
+            return reply.exceptionally(RespServer::failure);
+        } catch (final RuntimeException | CharacterCodingException e) {
+            return CompletableFuture.completedFuture(failure(e));
+        }
+    }
+
+    // runs the command once the connection's earlier commands on any of its keys have finished
+    private CompletableFuture<byte[]> afterSameKeys(final Map<String, CompletableFuture<byte[]>> pending,
+                                                    final List<String> keys,
+                                                    final Supplier<CompletableFuture<byte[]>> command) {
+        final List<CompletableFuture<byte[]>> earlier = new ArrayList<>();
+        for (final String key : keys) {
+            final CompletableFuture<byte[]> previous = pending.get(key);
+            if (previous != null) {
+                earlier.add(previous);
+            }
+        }
+
+        // replies never complete exceptionally, so waiting on them can't fail; the command runs on a
+        // worker, since the earlier reply may be completed by a storage thread that a write or read would stall
+        final CompletableFuture<byte[]> reply = earlier.isEmpty()
+                ? command.get()
+                : CompletableFuture.allOf(earlier.toArray(CompletableFuture[]::new))
+                        .thenComposeAsync(voidResult -> command.get(), workerPool)
+                        .exceptionally(RespServer::failure);
+        for (final String key : keys) {
+            pending.put(key, reply);
+            reply.whenComplete((result, e) -> pending.remove(key, reply));
+        }
+
+        return reply;
+    }
+
+    // the raw keys a command touches, for ordering only, so nothing has to be decoded yet
+    private static List<String> keysOf(final String name, final byte[][] command) {
+        final int step = name.equals("MSET") ? 2 : 1;
+        final int end = name.equals("SET") ? Math.min(command.length, 2) : command.length;
+        final List<String> keys = new ArrayList<>();
+        if (KEYED_COMMANDS.contains(name)) {
+            for (int i = 1; i < end; i += step) {
+                keys.add(new String(command[i], StandardCharsets.ISO_8859_1));
+            }
+        }
+
+        return keys;
+    }
+
+    private interface KeyCheck {
+        CompletableFuture<Boolean> apply(String key);
+    }
+
+    private static List<String> keys(final byte[][] command) throws CharacterCodingException {
+        final List<String> keys = new ArrayList<>(command.length - 1);
+        for (int i = 1; i < command.length; i++) {
+            keys.add(BinaryServer.decode(command[i]));
+        }
+
+        return keys;
+    }
+
+    // DEL and EXISTS: how many of the keys the check held for
+    private static CompletableFuture<byte[]> count(final List<String> keys, final KeyCheck check) {
+        final List<CompletableFuture<Boolean>> results = keys.stream().map(check::apply).toList();
+
+        return CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).thenApply(voidResult -> {
+            long count = 0;
+            for (final CompletableFuture<Boolean> result : results) {
+                if (result.join()) {
+                    count++;
+                }
+            }
+
+            return integer(count);
+        });
+    }
+
+    private CompletableFuture<byte[]> mget(final byte[][] command) throws CharacterCodingException {
+        final List<CompletableFuture<String>> values = keys(command).stream().map(commandProcessor::get).toList();
+
+        return CompletableFuture.allOf(values.toArray(CompletableFuture[]::new)).thenApply(voidResult -> {
+            final ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            reply.writeBytes(header('*', values.size()));
+            for (final CompletableFuture<String> value : values) {
+                reply.writeBytes(bulk(value.join()));
+            }
+
+            return reply.toByteArray();
+        });
+    }
+
+    // not atomic: the keys are written independently, and OK means all of them made it
+    private CompletableFuture<byte[]> mset(final byte[][] command) throws CharacterCodingException {
+        final String[] keys = new String[command.length / 2];
+        final String[] values = new String[keys.length];
+        // all decoded and checked first, so a bad pair doesn't leave the others half written
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = BinaryServer.decode(command[2 * i + 1]);
+            values[i] = BinaryServer.decode(command[2 * i + 2]);
+            CommandParser.checkWritable(keys[i], values[i]);
+        }
+
+        final CompletableFuture<?>[] writes = new CompletableFuture<?>[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            writes[i] = commandProcessor.put(keys[i], values[i]);
+        }
+
+        return CompletableFuture.allOf(writes).thenApply(voidResult -> OK);
+    }
+
+    private static void checkArity(final String name, final byte[][] command, final boolean valid) {
+        if (!valid) {
+            throw new IllegalArgumentException("wrong number of arguments for '" + name.toLowerCase(Locale.ROOT) + "' command");
+        }
+    }
+
+    private static byte[] failure(final Throwable failure) {
+        final Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+        if (cause instanceof BusyException) {
+            return error("BUSY the write wasn't admitted in time, retry later");
+        }
+        if (cause instanceof CharacterCodingException) {
+            return error("ERR keys and values have to be valid UTF-8");
+        }
+        if (!(cause instanceof ReservedKeywordException) && !(cause instanceof IllegalArgumentException)) {
+            logger.error("Error processing RESP command: {}", cause.getMessage());
+        }
+
+        return error("ERR " + cause.getMessage());
+    }
+
+    /**
+     * Reads the next command: an array of bulk strings, or an inline command split on spaces.
+     * Returns null at a clean end of stream and an empty command for an empty one.
+     */
+    private static byte[][] readCommand(final InputStream in) throws IOException {
+        final int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+
+        if (first != '*') {
+            return splitInline((char) first + readLine(in));
+        }
+
+        final int count = parseLength(readLine(in), MAX_ARGUMENTS);
+        final byte[][] command = new byte[Math.max(count, 0)][];
+        for (int i = 0; i < command.length; i++) {
+            if (in.read() != '$') {
+                throw new ProtocolException("expected '$'");
+            }
+
+            final int length = parseLength(readLine(in), MAX_BULK_LENGTH);
+            if (length < 0) {
+                throw new ProtocolException("invalid bulk length");
+            }
+
+            command[i] = in.readNBytes(length);
+            if (command[i].length < length) {
+                throw new EOFException();
+            }
+            if (in.read() != '\r' || in.read() != '\n') {
+                throw new ProtocolException("expected CRLF after bulk string");
+            }
+        }
+
+        return command;
+    }
+
+    // the rest of a line without its CR LF, one char per byte
+    private static String readLine(final InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new ProtocolException("too big inline request");
+            }
+            line.append((char) b);
+        }
+
+        final int end = line.length() > 0 && line.charAt(line.length() - 1) == '\r' ? line.length() - 1 : line.length();
+        return line.substring(0, end);
+    }
+
+    private static int parseLength(final String line, final int max) throws ProtocolException {
+        try {
+            final int length = Integer.parseInt(line);
+            if (length > max) {
+                throw new ProtocolException("length " + length + " is over the limit of " + max);
+            }
+
+            return length;
+        } catch (final NumberFormatException e) {
+            throw new ProtocolException("invalid length '" + line + "'");
+        }
+    }
+
+    // the line holds one char per byte, so the bytes come back unchanged
+    private static byte[][] splitInline(final String line) {
+        if (line.isBlank()) {
+            return new byte[0][];
+        }
+
+        final String[] parts = line.strip().split("\\s+");
+        final byte[][] bytes = new byte[parts.length][];
+        for (int i = 0; i < parts.length; i++) {
+            bytes[i] = parts[i].getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        return bytes;
+    }
+
+    private static byte[] error(final String message) {
+        // an error is one line
+        return ("-" + message.replace('\r', ' ').replace('\n', ' ') + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] integer(final long value) {
+        return (":" + value + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] bulk(final String value) {
+        return value == null ? NIL : bulk(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] bulk(final byte[] value) {
+        final byte[] header = header('$', value.length);
+        final byte[] reply = new byte[header.length + value.length + 2];
+        System.arraycopy(header, 0, reply, 0, header.length);
+        System.arraycopy(value, 0, reply, header.length, value.length);
+        reply[reply.length - 2] = '\r';
+        reply[reply.length - 1] = '\n';
+        return reply;
+    }
+
+    private static byte[] header(final char type, final int length) {
+        return (type + Integer.toString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // the client sent something that isn't RESP; it gets an error and the connection is closed, as Redis does
+    private static final class ProtocolException extends IOException {
+        ProtocolException(final String message) {
+            super(message);
+        }
+    }
+}
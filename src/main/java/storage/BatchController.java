@@ -0,0 +1,159 @@
+package storage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sizes write batches against a latency target. Write time is modelled as a fixed cost per batch
+ * (the syscall and, with batch durability, the fsync) plus a cost per record, fitted over recent
+ * batches, and the cap is the largest batch whose write fits in the target. When the fixed cost
+ * alone exceeds the target, smaller batches would only mean more fsyncs and a longer queue, so the
+ * cap stays at the maximum.
+ * <p>
+ * When a batch drains fewer records than the cap, the write thread may linger for more, for as
+ * long as the target leaves room after the batch's expected write time and lingering has actually
+ * been bringing in records. A zero target turns all of this off: batches take whatever is queued,
+ * up to the maximum.
+ * <p>
+ * Only the write thread updates the controller; STATUS reads the histogram of batch sizes.
+ */
+class BatchController {
+    private static final int MIN_CAP = 16;
+    private static final double EWMA_WEIGHT = 0.05;
+    // lingering that brought in fewer records than this on average is skipped, apart from probes
+    private static final double MIN_LINGER_GAIN = 1;
+    private static final int PROBE_INTERVAL = 32;
+    // batches seen before the cap starts to adapt, so the fit has something to go on
+    private static final int WARMUP_BATCHES = 64;
+    // bucket i counts batches of 2^i to 2^(i+1) - 1 records
+    private static final int BUCKETS = 16;
+
+    private final int maxBatchSize;
+    private final long targetNanos;
+    private final long maxLingerNanos;
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    // only touched by the write thread, apart from the volatile cap STATUS shows
+    private volatile int cap;
+    // moving averages of batch size n and write time t, for a least-squares fit of t = fixed + n * perRecord
+    private double meanSize;
+    private double meanNanos;
+    private double meanSizeSquared;
+    private double meanSizeNanos;
+    private double fixedNanos;
+    private double perRecordNanos;
+    private double lingerGain = MIN_LINGER_GAIN;
+    private long batches;
+
+    BatchController(final int maxBatchSize, final long targetMicros, final long maxLingerMicros) {
+        this.maxBatchSize = maxBatchSize;
+        this.targetNanos = TimeUnit.MICROSECONDS.toNanos(targetMicros);
+        this.maxLingerNanos = TimeUnit.MICROSECONDS.toNanos(maxLingerMicros);
+        this.cap = maxBatchSize;
+    }
+
+    int maxBatchSize() {
+        return maxBatchSize;
+    }
+
+    // how many records the next batch may take
+    int cap() {
+        return cap;
+    }
+
+    /**
+     * How long to wait for more records after draining {@code batchSize}, or 0 to write right away.
+     */
+    long lingerNanos(final int batchSize) {
+        if (targetNanos == 0 || batchSize >= cap) {
+            return 0;
+        }
+
+        if (lingerGain < MIN_LINGER_GAIN && batches % PROBE_INTERVAL != 0) {
+            return 0;
+        }
+
+        final long slack = targetNanos - (long) expectedNanos(batchSize);
+        return slack <= 0 ? 0 : Math.min(maxLingerNanos, slack / 2);
+    }
+
+    // records that arrived while lingering, to learn whether lingering is worth it under the current load
+    void recordLinger(final int gained) {
+        lingerGain += EWMA_WEIGHT * (gained - lingerGain);
+    }
+
+    /**
+     * Records a batch once it has been acknowledged; {@code writeNanos} runs from the end of
+     * draining to the acknowledgement, so it doesn't include lingering.
+     */
+    void record(final int batchSize, final long writeNanos) {
+        batches++;
+        histogram.incrementAndGet(Math.min(BUCKETS - 1, 31 - Integer.numberOfLeadingZeros(Math.max(1, batchSize))));
+
+        final double weight = batches == 1 ? 1 : EWMA_WEIGHT;
+        meanSize += weight * (batchSize - meanSize);
+        meanNanos += weight * (writeNanos - meanNanos);
+        meanSizeSquared += weight * ((double) batchSize * batchSize - meanSizeSquared);
+        meanSizeNanos += weight * ((double) batchSize * writeNanos - meanSizeNanos);
+
+        // the slope is only trusted while batch sizes vary enough to tell the two costs apart;
+        // until then, all of the time counts as fixed cost
+        final double sizeVariance = meanSizeSquared - meanSize * meanSize;
+        if (sizeVariance > Math.max(1, meanSize * meanSize / 16)) {
+            perRecordNanos = Math.max(0, (meanSizeNanos - meanSize * meanNanos) / sizeVariance);
+        }
+        fixedNanos = Math.max(0, meanNanos - perRecordNanos * meanSize);
+
+        if (targetNanos == 0 || batches < WARMUP_BATCHES) {
+            return;
+        }
+
+        final double fitting = perRecordNanos == 0 || fixedNanos >= targetNanos
+                ? maxBatchSize
+                : (targetNanos - fixedNanos) / perRecordNanos;
+        int wanted = (int) Math.max(MIN_CAP, Math.min(maxBatchSize, fitting));
+        if (batchSize >= cap && batches % PROBE_INTERVAL == 0) {
+            // a binding cap keeps batch sizes alike and the fit stale; now and then try bigger ones
+            wanted = Math.max(wanted, cap + cap / 2);
+        }
+        // move a quarter of the way per batch, so one slow fsync doesn't throw the cap around
+        cap += (wanted - cap) / 4 + Integer.signum(wanted - cap);
+        cap = Math.max(MIN_CAP, Math.min(maxBatchSize, cap));
+    }
+
+    private double expectedNanos(final int batchSize) {
+        return fixedNanos + perRecordNanos * batchSize;
+    }
+
+    String getStatus() {
+        if (targetNanos == 0) {
+            return String.format("fixed at %d", maxBatchSize);
+        }
+
+        return String.format("cap %d of %d, target %d us, write %.0f us + %.2f us per record",
+                cap, maxBatchSize, TimeUnit.NANOSECONDS.toMicros(targetNanos), fixedNanos / 1000, perRecordNanos / 1000);
+    }
+
+    // non-empty buckets as "from-to:count"
+    String getHistogram() {
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < BUCKETS; i++) {
+            final long count = histogram.get(i);
+            if (count == 0) {
+                continue;
+            }
+
+            if (!result.isEmpty()) {
+                result.append(' ');
+            }
+            final long from = 1L << i;
+            if (i == BUCKETS - 1) {
+                result.append(from).append("+:").append(count);
+            } else {
+                result.append(from).append('-').append((from << 1) - 1).append(':').append(count);
+            }
+        }
+
+        return result.isEmpty() ? "none" : result.toString();
+    }
+}
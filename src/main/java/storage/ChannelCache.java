@@ -0,0 +1,240 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded cache of segment read channels, so the number of open files doesn't grow with the
+ * number of segments. A channel is opened on the first read of its segment and, once more than
+ * the maximum are open, channels that no reader holds and that haven't been used lately are closed.
+ * <p>
+ * Readers {@link #acquire} a channel and {@link #release} it when done; a channel is never closed
+ * while it is held, so the cache can go over its maximum for as long as every channel is in use.
+ * A hit only touches the channel's own holder count, without a lock: recency is kept approximately,
+ * with a clock. Every hit sets the channel's reference bit, and eviction sweeps the channels in
+ * the order they were opened, giving any channel with the bit set another round instead of closing it.
+ * The lock is only taken to open a channel, evict and retire.
+ */
+final class ChannelCache {
+    private final String dataPath;
+    private final int maxOpen;
+    private final ConcurrentHashMap<Segment, Entry> channels = new ConcurrentHashMap<>();
+    // guarded by the lock: the open channels in clock order, the hand at the head
+    private final ArrayDeque<Entry> clock = new ArrayDeque<>();
+    // a lock rather than a monitor: a virtual thread waiting on a monitor pins its carrier thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Entry {
+        // the holder count marks a channel being closed, so no reader can take it any more
+        private static final int CLOSED = -1;
+
+        private final Segment segment;
+        private final FileChannel channel;
+        private final AtomicInteger holders = new AtomicInteger();
+        // set by every hit and cleared by the clock hand as it passes
+        private volatile boolean referenced = true;
+        // the segment was removed while the channel was held; the last holder closes it
+        private volatile boolean retired;
+
+        private Entry(final Segment segment, final FileChannel channel) {
+            this.segment = segment;
+            this.channel = channel;
+        }
+
+        boolean tryHold() {
+            int current;
+            do {
+                current = holders.get();
+                if (current == CLOSED) {
+                    return false;
+                }
+            } while (!holders.compareAndSet(current, current + 1));
+
+            if (!referenced) {
+                referenced = true;
+            }
+            return true;
+        }
+
+        // only an idle channel can be closed, and only by one thread
+        boolean tryClose() {
+            return holders.compareAndSet(0, CLOSED);
+        }
+    }
+
+    ChannelCache(final String dataPath, final int maxOpen) {
+        this.dataPath = dataPath;
+        this.maxOpen = maxOpen;
+    }
+
+    /**
+     * Returns the segment's read channel, opening it if needed. Every call has to be paired with
+     * a {@link #release}. Throws {@link ClosedChannelException} if the segment has been removed.
+     */
+    FileChannel acquire(final Segment segment) throws IOException {
+        final Entry cached = channels.get(segment);
+        if (cached != null && cached.tryHold()) {
+            hits.increment();
+            return cached.channel;
+        }
+
+        misses.increment();
+        // opened outside the lock, so a slow open doesn't hold up reads of other segments
+        final FileChannel channel;
+        try {
+            channel = FileChannel.open(Path.of(dataPath + segment.name()), StandardOpenOption.READ);
+        } catch (final NoSuchFileException e) {
+            if (segment.isRemoved()) {
+                throw new ClosedChannelException();
+            }
+            throw e;
+        }
+
+        final List<FileChannel> evicted;
+        Entry entry;
+        lock.lock();
+        try {
+            // another reader may have opened it meanwhile; the copy that got in first is kept
+            entry = channels.get(segment);
+            if (entry != null && !entry.tryHold()) {
+                entry = null;
+            }
+            if (entry == null && !segment.isRemoved()) {
+                entry = new Entry(segment, channel);
+                entry.holders.set(1);
+                // replaces a closed entry its closer hasn't taken out yet
+                channels.put(segment, entry);
+                clock.addLast(entry);
+                // retired channels leave the clock when the hand passes them, which it may not do for a while
+                if (clock.size() > 2 * channels.size() + 16) {
+                    clock.removeIf(stale -> channels.get(stale.segment) != stale);
+                }
+            }
+            // otherwise it was removed after we looked; retire() has already run, so nothing else will close this one
+            evicted = evictIdle();
+        } finally {
+            lock.unlock();
+        }
+
+        if (entry == null || entry.channel != channel) {
+            channel.close();
+        }
+        closeAll(evicted);
+
+        if (entry == null) {
+            throw new ClosedChannelException();
+        }
+        return entry.channel;
+    }
+
+    void release(final Segment segment) throws IOException {
+        final Entry entry = channels.get(segment);
+        if (entry == null) {
+            return;
+        }
+
+        if (entry.holders.decrementAndGet() == 0 && entry.retired && entry.tryClose()) {
+            channels.remove(segment, entry);
+            entry.channel.close();
+        }
+
+        // over the maximum only while every channel was held; now one may be idle
+        if (channels.size() > maxOpen) {
+            final List<FileChannel> evicted;
+            lock.lock();
+            try {
+                evicted = evictIdle();
+            } finally {
+                lock.unlock();
+            }
+            closeAll(evicted);
+        }
+    }
+
+    /**
+     * Drops a segment that was removed from the registry, closing its channel once no reader
+     * holds it. {@link Segment#isRemoved()} has to be set first.
+     */
+    void retire(final Segment segment) throws IOException {
+        final Entry entry = channels.get(segment);
+        if (entry == null) {
+            return;
+        }
+
+        // if it's held, whichever holder releases it last sees the flag and closes it
+        entry.retired = true;
+        if (entry.tryClose()) {
+            channels.remove(segment, entry);
+            entry.channel.close();
+        }
+    }
+
+    // sweeps the clock, closing idle channels not used since the hand last passed, until the cache
+    // is within its maximum or a full round of second chances is done; caller holds the lock
+    private List<FileChannel> evictIdle() {
+        if (channels.size() <= maxOpen) {
+            return List.of();
+        }
+
+        final List<FileChannel> evicted = new ArrayList<>();
+        for (int visits = 2 * clock.size(); channels.size() > maxOpen && visits > 0 && !clock.isEmpty(); visits--) {
+            final Entry entry = clock.pollFirst();
+            if (channels.get(entry.segment) != entry) {
+                // retired and closed already
+                continue;
+            }
+
+            if (entry.referenced) {
+                entry.referenced = false;
+            } else if (entry.tryClose()) {
+                channels.remove(entry.segment, entry);
+                evicted.add(entry.channel);
+                evictions.increment();
+                continue;
+            }
+            clock.addLast(entry);
+        }
+
+        return evicted;
+    }
+
+    private static void closeAll(final List<FileChannel> channels) throws IOException {
+        for (final FileChannel channel : channels) {
+            channel.close();
+        }
+    }
+
+    int getOpen() {
+        return channels.size();
+    }
+
+    int getMaxOpen() {
+        return maxOpen;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+}
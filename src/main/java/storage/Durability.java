@@ -0,0 +1,54 @@
+package storage;
+
+import java.util.Locale;
+
+/**
+ * When the write thread calls fsync on the active segment.
+ * <ul>
+ *     <li>{@code none}: never, the OS decides when data reaches the disk</li>
+ *     <li>{@code batch}: once per drained batch, and writes are acknowledged only after that fsync (group commit)</li>
+ *     <li>{@code interval:<ms>}: at most every {@code ms} milliseconds, writes are acknowledged before it</li>
+ * </ul>
+ */
+public record Durability(Mode mode, long intervalMillis) {
+    private static final String INTERVAL_PREFIX = "interval:";
+
+    public enum Mode {
+        NONE,
+        BATCH,
+        INTERVAL
+    }
+
+    public static Durability parse(final String value) {
+        if (value == null || value.isBlank()) {
+            return new Durability(Mode.NONE, 0);
+        }
+
+        final String normalized = value.strip().toLowerCase(Locale.ROOT);
+        if (normalized.equals("none")) {
+            return new Durability(Mode.NONE, 0);
+        }
+
+        if (normalized.equals("batch")) {
+            return new Durability(Mode.BATCH, 0);
+        }
+
+        if (normalized.startsWith(INTERVAL_PREFIX)) {
+            try {
+                final long intervalMillis = Long.parseLong(normalized.substring(INTERVAL_PREFIX.length()));
+                if (intervalMillis > 0) {
+                    return new Durability(Mode.INTERVAL, intervalMillis);
+                }
+            } catch (final NumberFormatException e) {
+                // fall through to the error below
+            }
+        }
+
+        throw new IllegalArgumentException("Unsupported durability mode '" + value + "', expected none, batch or interval:<ms>");
+    }
+
+    @Override
+    public String toString() {
+        return mode == Mode.INTERVAL ? INTERVAL_PREFIX + intervalMillis : mode.name().toLowerCase(Locale.ROOT);
+    }
+}
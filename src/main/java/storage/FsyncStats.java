@@ -0,0 +1,39 @@
+package storage;
+
+/**
+ * Fsync counters for one write thread. Only the write thread records, so plain volatile
+ * fields are enough for STATUS readers to see reasonably fresh values.
+ */
+public class FsyncStats {
+    private volatile long fsyncCount;
+    private volatile long recordsSynced;
+    private volatile long totalNanos;
+    private volatile long maxNanos;
+
+    void record(final long records, final long nanos) {
+        fsyncCount++;
+        recordsSynced += records;
+        totalNanos += nanos;
+        if (nanos > maxNanos) {
+            maxNanos = nanos;
+        }
+    }
+
+    public long getFsyncCount() {
+        return fsyncCount;
+    }
+
+    public double getRecordsPerFsync() {
+        final long count = fsyncCount;
+        return count == 0 ? 0 : (double) recordsSynced / count;
+    }
+
+    public double getAverageLatencyMillis() {
+        final long count = fsyncCount;
+        return count == 0 ? 0 : totalNanos / (count * 1_000_000.0);
+    }
+
+    public double getMaxLatencyMillis() {
+        return maxNanos / 1_000_000.0;
+    }
+}
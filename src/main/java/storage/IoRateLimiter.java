@@ -0,0 +1,37 @@
+package storage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces background I/O to a fixed number of bytes per second so it doesn't compete with
+ * foreground reads and writes for the disk. Not thread safe; each background thread owns one.
+ */
+class IoRateLimiter {
+    // sleeping for less than this mostly measures the scheduler, so small waits are batched up
+    private static final long MIN_SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final long bytesPerSecond;
+    private long nextFreeNanos = System.nanoTime();
+
+    // a non-positive rate disables limiting
+    IoRateLimiter(final long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    void acquire(final long bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        // idle time only turns into a small burst allowance, which also absorbs oversleeping
+        nextFreeNanos = Math.max(nextFreeNanos, now - MAX_BURST_NANOS);
+        nextFreeNanos += bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+
+        final long waitNanos = nextFreeNanos - now;
+        if (waitNanos >= MIN_SLEEP_NANOS) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
@@ -1,31 +1,112 @@
 package storage;
 
-import java.util.Optional;
+import config.ConfigManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.CompletableFuture;
 
+/**
+ * Shared-nothing storage engine: the keyspace is split by key hash into partitions, and each
+ * partition is a complete {@link SingleThreadedStorageEngine} with its own write queue, writer
+ * thread, active segment and keydir, living in its own directory under the data path.
+ * Requests are routed straight to the owning partition, so there is no state shared between them.
+ */
 public class MultiThreadedStorageEngine implements StorageEngine {
+    private static final Logger logger = LoggerFactory.getLogger(MultiThreadedStorageEngine.class);
+    private static final String PARTITION_DIR_PREFIX = "partition-";
+
+    private final SingleThreadedStorageEngine[] partitions;
+
+    public MultiThreadedStorageEngine() throws IOException {
+        final ConfigManager configManager = new ConfigManager("config.properties");
+        final String dataPath = configManager.getProperty("datapath");
+        final int partitionCount = configManager.getIntProperty("storage.partitions", Runtime.getRuntime().availableProcessors());
+
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("storage.partitions must be at least 1, got " + partitionCount);
+        }
+
+        checkExistingPartitions(dataPath, partitionCount);
+
+        final WriteBudget writeBudget = SingleThreadedStorageEngine.createWriteBudget(configManager);
+        // the cache bytes are for the whole process; keys hash evenly, so each partition gets an equal share
+        final long cacheBytes = configManager.getLongProperty("storage.cache.bytes", 0) / partitionCount;
+        partitions = new SingleThreadedStorageEngine[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new SingleThreadedStorageEngine(dataPath + PARTITION_DIR_PREFIX + i + "/", "storage-write-thread-" + i,
+                    writeBudget, cacheBytes);
+        }
+
+        logger.info("Multi-threaded storage engine initialized with {} partitions.", partitionCount);
+    }
+
     @Override
     public CompletableFuture<Void> write(String key, String value) {
-        return null;
+        return partitionFor(key).write(key, value);
     }
 
     @Override
     public CompletableFuture<String> read(String key) {
-        return null;
+        return partitionFor(key).read(key);
     }
 
     @Override
     public CompletableFuture<Void> delete(String key) {
-        return null;
+        return partitionFor(key).delete(key);
     }
 
     @Override
     public CompletableFuture<Void> flush() {
-        return null;
+        final CompletableFuture<?>[] flushes = new CompletableFuture<?>[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            flushes[i] = partitions[i].flush();
+        }
+
+        return CompletableFuture.allOf(flushes);
     }
 
     @Override
     public String getStatus() {
-        return "";
+        final StringBuilder status = new StringBuilder();
+        for (int i = 0; i < partitions.length; i++) {
+            status.append("Partition ").append(i).append('\n').append(partitions[i].getStatus());
+        }
+
+        return status.toString();
+    }
+
+    private SingleThreadedStorageEngine partitionFor(final String key) {
+        // spread the high bits down so keys that differ only in their upper hash bits
+        // don't all land on the same partition
+        final int hash = key.hashCode();
+        return partitions[Math.floorMod(hash ^ (hash >>> 16), partitions.length)];
+    }
+
+    /**
+     * Keys are routed by hash, so changing the partition count would silently strand existing
+     * keys in the wrong partition. Segments at the top of the data path, written by the single
+     * engine or before the engine was partitioned, would be stranded just the same, since no
+     * partition reads them. Refuse to start in either case instead.
+     */
+    private static void checkExistingPartitions(final String dataPath, final int partitionCount) {
+        final File[] unpartitioned = new File(dataPath).listFiles(SingleThreadedStorageEngine.DATA_FILE_FILTER);
+        if (unpartitioned != null && unpartitioned.length > 0) {
+            throw new IllegalStateException(String.format(
+                    "Data path %s holds %d segments outside any partition; start with storage.type=single "
+                            + "or move them out of the data path",
+                    dataPath, unpartitioned.length));
+        }
+
+        final File[] partitionDirs = new File(dataPath).listFiles(
+                file -> file.isDirectory() && file.getName().startsWith(PARTITION_DIR_PREFIX));
+
+        if (partitionDirs != null && partitionDirs.length > 0 && partitionDirs.length != partitionCount) {
+            throw new IllegalStateException(String.format(
+                    "Data path %s has %d partitions but storage.partitions is %d",
+                    dataPath, partitionDirs.length, partitionCount));
+        }
     }
 }
@@ -0,0 +1,83 @@
+package storage;
+
+/**
+ * One data file: its registry id and its total and live record bytes. A record is live while the
+ * keydir points at it. Only the write thread updates the byte counts and the sealed flag; the
+ * merger reads them to pick segments worth compacting. Read channels come from the
+ * {@link ChannelCache}.
+ */
+final class Segment {
+    private final int id;
+    private final String name;
+    private volatile long totalBytes;
+    private volatile long liveBytes;
+    private volatile boolean sealed;
+    private volatile boolean removed;
+
+    Segment(final int id, final String name, final long totalBytes, final boolean sealed) {
+        this.id = id;
+        this.name = name;
+        this.totalBytes = totalBytes;
+        this.sealed = sealed;
+    }
+
+    int id() {
+        return id;
+    }
+
+    String name() {
+        return name;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    void seal() {
+        sealed = true;
+    }
+
+    // set once the segment has been merged away, before its file is deleted
+    boolean isRemoved() {
+        return removed;
+    }
+
+    void markRemoved() {
+        removed = true;
+    }
+
+    void addRecord(final int size) {
+        totalBytes += size;
+        liveBytes += size;
+    }
+
+    // a record that nothing points at, like a flush marker
+    void addDeadRecord(final int size) {
+        totalBytes += size;
+    }
+
+    void addLive(final int size) {
+        liveBytes += size;
+    }
+
+    void removeLive(final int size) {
+        liveBytes -= size;
+    }
+
+    void clearLive() {
+        liveBytes = 0;
+    }
+
+    long getTotalBytes() {
+        return totalBytes;
+    }
+
+    long getLiveBytes() {
+        return liveBytes;
+    }
+
+    double getDeadRatio() {
+        final long total = totalBytes;
+        return total == 0 ? 0 : 1 - (double) liveBytes / total;
+    }
+}
@@ -0,0 +1,261 @@
+package storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storage.disk.DiskRecord;
+import storage.disk.HintFile;
+import storage.mem.MemRecord;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static legacy.engine.LogWriter.FLUSH_TOMBSTONE_VALUE;
+import static legacy.engine.LogWriter.TOMBSTONE_VALUE;
+import static storage.SingleThreadedStorageEngine.DATA_FILE_SUFFIX;
+import static storage.SingleThreadedStorageEngine.SEGMENT_NAME_ORDER;
+
+/**
+ * Bitcask-style merge. Periodically picks sealed segments with a high share of dead bytes,
+ * copies their live records (the ones the keydir still points at) into a new segment, and
+ * hands the result to the write thread, which repoints the keydir and deletes the old files.
+ * <p>
+ * The merged segment is named after the newest segment it replaces, e.g. {@code 1700000000000.1.data}
+ * for {@code 1700000000000.data}, so it sorts right where its inputs were and never after the active segment.
+ * The sequence number is compared as a number, see {@link SingleThreadedStorageEngine#SEGMENT_NAME_ORDER}.
+ */
+class SegmentMerger {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentMerger.class);
+    static final String MERGE_TEMP_SUFFIX = ".merging";
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    private final SingleThreadedStorageEngine engine;
+    private final String dataPath;
+    private final long intervalMillis;
+    private final double minDeadRatio;
+    private final long maxMergeBytes;
+    private final IoRateLimiter rateLimiter;
+    private final ScheduledExecutorService executor;
+
+    SegmentMerger(final SingleThreadedStorageEngine engine, final String dataPath, final String threadName,
+                  final long intervalMillis, final double minDeadRatio, final long maxMergeBytes, final long bytesPerSecond) {
+        this.engine = engine;
+        this.dataPath = dataPath;
+        this.intervalMillis = intervalMillis;
+        this.minDeadRatio = minDeadRatio;
+        this.maxMergeBytes = maxMergeBytes;
+        this.rateLimiter = new IoRateLimiter(bytesPerSecond);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            // foreground writes and reads come first
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    void start() {
+        executor.scheduleWithFixedDelay(this::mergeOnce, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    // a merge interrupted by a crash or shutdown leaves its temp file behind; it was never installed
+    static void deleteLeftovers(final String dataPath) throws IOException {
+        final File[] leftovers = new File(dataPath).listFiles(file -> file.getName().endsWith(MERGE_TEMP_SUFFIX));
+        if (leftovers == null) {
+            return;
+        }
+
+        for (final File leftover : leftovers) {
+            logger.info("Deleting unfinished merge output {}", leftover.getName());
+            Files.deleteIfExists(leftover.toPath());
+        }
+    }
+
+    void mergeOnce() {
+        try {
+            final List<Segment> sealedSegments = engine.getSealedSegments();
+            final List<Segment> candidates = pickCandidates(sealedSegments);
+
+            if (candidates.isEmpty()) {
+                return;
+            }
+
+            // tombstones only shadow records in older segments, so they can be dropped
+            // once every older segment is part of this merge
+            final Segment newestCandidate = candidates.get(candidates.size() - 1);
+            final boolean dropTombstones = sealedSegments.stream()
+                    .filter(segment -> SEGMENT_NAME_ORDER.compare(segment.name(), newestCandidate.name()) < 0)
+                    .allMatch(candidates::contains);
+
+            merge(candidates, newestCandidate, dropTombstones);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final Exception e) {
+            // an exception escaping here would cancel all future runs
+            logger.error("Segment merge failed", e);
+        }
+    }
+
+    private List<Segment> pickCandidates(final List<Segment> sealedSegments) {
+        final List<Segment> candidates = new ArrayList<>();
+        long liveBytes = 0;
+
+        for (final Segment segment : sealedSegments) {
+            if (segment.getDeadRatio() < minDeadRatio) {
+                continue;
+            }
+
+            // keep each round bounded; whatever is left gets picked up next time
+            if (!candidates.isEmpty() && liveBytes + segment.getLiveBytes() > maxMergeBytes) {
+                break;
+            }
+
+            candidates.add(segment);
+            liveBytes += segment.getLiveBytes();
+        }
+
+        return candidates;
+    }
+
+    private void merge(final List<Segment> candidates, final Segment newestCandidate, final boolean dropTombstones)
+            throws IOException, InterruptedException, ExecutionException {
+        final long start = System.currentTimeMillis();
+        final String outputName = mergedSegmentName(newestCandidate.name());
+        final Path tempPath = Path.of(dataPath + outputName + MERGE_TEMP_SUFFIX);
+        final List<Relocation> relocations = new ArrayList<>();
+        long outputOffset = 0;
+
+        try (FileChannel output = FileChannel.open(tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            final ChannelCache readChannels = engine.getReadChannels();
+
+            for (final Segment candidate : candidates) {
+                final FileChannel input = readChannels.acquire(candidate);
+                try {
+                    final long end = input.size();
+                    long offset = 0;
+
+                    while (offset < end) {
+                        final DiskRecord record = DiskRecord.readAt(input, offset);
+                        if (record == null) {
+                            // the end marker, or the unused space of a segment that is still being sealed
+                            break;
+                        }
+                        final long recordOffset = offset;
+                        offset = record.offset();
+                        rateLimiter.acquire(offset - recordOffset);
+
+                        final boolean live = isLive(record.key(), candidate.id(), record.valueOffset());
+                        if (!live && (dropTombstones || !isTombstone(record))) {
+                            continue;
+                        }
+
+                        final byte[] keyBytes = record.key().getBytes(StandardCharsets.UTF_8);
+                        final byte[] valueBytes = record.value().getBytes(StandardCharsets.UTF_8);
+                        final int size = DiskRecord.encodedSize(keyBytes.length, valueBytes.length);
+
+                        if (buffer.remaining() < size) {
+                            writeFully(output, buffer);
+                            if (buffer.capacity() < size) {
+                                buffer = ByteBuffer.allocate(size);
+                            }
+                        }
+
+                        // keep the original timestamp so recency is unchanged when the keydir is rebuilt
+                        DiskRecord.put(buffer, record.timestamp(), keyBytes, valueBytes);
+                        if (live) {
+                            relocations.add(new Relocation(record.key(), candidate.id(), record.valueOffset(),
+                                    outputOffset + DiskRecord.valuePosition(keyBytes.length, valueBytes.length), valueBytes.length,
+                                    record.timestamp(), size));
+                        }
+                        outputOffset += size;
+                    }
+                } finally {
+                    readChannels.release(candidate);
+                }
+            }
+
+            writeFully(output, buffer);
+            // the old segments are about to be deleted, so the copy has to be on disk first
+            output.force(true);
+        }
+
+        if (outputOffset == 0) {
+            // nothing survived, the inputs can simply go
+            Files.delete(tempPath);
+            engine.runOnWriteThread(() -> engine.installMergedSegment(candidates, null, relocations)).get();
+        } else {
+            final Path outputPath = Path.of(dataPath + outputName);
+            Files.move(tempPath, outputPath, StandardCopyOption.ATOMIC_MOVE);
+            try {
+                HintFile.write(outputPath);
+            } catch (final IOException e) {
+                logger.warn("Unable to write hint for merged segment {}", outputName, e);
+            }
+            engine.runOnWriteThread(() -> engine.installMergedSegment(candidates, outputName, relocations)).get();
+        }
+
+        logger.info("Merged {} segments into {} ({} live records, {} bytes) in {} ms",
+                candidates.size(), outputOffset == 0 ? "nothing" : outputName, relocations.size(), outputOffset,
+                System.currentTimeMillis() - start);
+    }
+
+    // the keydir is read without coordinating with the write thread, so this can be stale; the write
+    // thread re-checks every relocation and only deletes a segment once nothing points into it
+    private boolean isLive(final String key, final int segmentId, final long valueOffset) {
+        final int epoch = engine.getEpoch();
+        final Optional<MemRecord> memRecord = engine.getMemStore().read(key);
+        return memRecord.isPresent()
+                && memRecord.get().epoch() == epoch
+                && memRecord.get().valueOffset() == valueOffset
+                && memRecord.get().segmentId() == segmentId;
+    }
+
+    private static boolean isTombstone(final DiskRecord record) {
+        return record.value().equals(TOMBSTONE_VALUE) || record.key().equals(FLUSH_TOMBSTONE_VALUE);
+    }
+
+    private void writeFully(final FileChannel output, final ByteBuffer buffer) throws IOException, InterruptedException {
+        buffer.flip();
+        rateLimiter.acquire(buffer.remaining());
+        while (buffer.hasRemaining()) {
+            output.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    String mergedSegmentName(final String newestCandidate) {
+        int digits = 0;
+        while (digits < newestCandidate.length() && Character.isDigit(newestCandidate.charAt(digits))) {
+            digits++;
+        }
+
+        final String base = newestCandidate.substring(0, digits);
+        int sequence = 1;
+        while (Files.exists(Path.of(dataPath + base + "." + sequence + DATA_FILE_SUFFIX))) {
+            sequence++;
+        }
+
+        return base + "." + sequence + DATA_FILE_SUFFIX;
+    }
+
+    record Relocation(String key, int fromSegment, long fromValueOffset, long toValueOffset, int valueLength,
+                      long timestamp, int size) {}
+}
@@ -0,0 +1,68 @@
+package storage;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static storage.SingleThreadedStorageEngine.SEGMENT_NAME_ORDER;
+
+/**
+ * The data files of one engine, each under a dense int id that the keydir stores in place of the
+ * file's name, so resolving a keydir entry to its segment is a single array index.
+ * <p>
+ * Ids are handed out in order and never reused: a reader holding a stale keydir entry finds
+ * either the segment it was written to or nothing. Only the write thread (or the constructor)
+ * registers and removes segments; lookups are safe from any thread.
+ */
+final class SegmentRegistry {
+    private volatile Segment[] segments = new Segment[16];
+    private final Map<String, Segment> segmentsByName = new ConcurrentHashMap<>();
+    private int nextId;
+
+    Segment register(final String name, final long size, final boolean sealed) {
+        final Segment segment = new Segment(nextId++, name, size, sealed);
+
+        Segment[] current = segments;
+        if (segment.id() >= current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[segment.id()] = segment;
+        segments = current;
+        segmentsByName.put(name, segment);
+
+        return segment;
+    }
+
+    // null once the segment has been merged away
+    Segment get(final int id) {
+        final Segment[] current = segments;
+        return id >= 0 && id < current.length ? current[id] : null;
+    }
+
+    Segment get(final String name) {
+        return segmentsByName.get(name);
+    }
+
+    void remove(final Segment segment) {
+        segment.markRemoved();
+        segmentsByName.remove(segment.name());
+        final Segment[] current = segments;
+        current[segment.id()] = null;
+        segments = current;
+    }
+
+    Collection<Segment> all() {
+        return segmentsByName.values();
+    }
+
+    // oldest first
+    List<Segment> sealed() {
+        return segmentsByName.values().stream()
+                .filter(Segment::isSealed)
+                .sorted(Comparator.comparing(Segment::name, SEGMENT_NAME_ORDER))
+                .toList();
+    }
+}
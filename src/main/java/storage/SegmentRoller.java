@@ -0,0 +1,140 @@
+package storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storage.disk.DiskRecord;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static storage.SingleThreadedStorageEngine.DATA_FILE_SUFFIX;
+
+/**
+ * Takes segment rollover off the write thread. The next segment is created and preallocated in
+ * the background while the current one fills up, so rolling over is just a swap of channels, and a
+ * finished segment is sealed in the background: its end marker is written, the unused preallocated
+ * space is trimmed and its write channel closed.
+ * <p>
+ * Preallocation is {@code sparse} (the file is extended to full size up front, so writes never
+ * change its size and fdatasync has no size to flush), {@code fill} (also zero-filled, so the
+ * filesystem allocates every block ahead of time) or {@code none}.
+ */
+class SegmentRoller {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentRoller.class);
+    private static final int FILL_BUFFER_SIZE = 1024 * 1024;
+
+    enum Preallocation { NONE, SPARSE, FILL }
+
+    record Prepared(String name, FileChannel writeChannel) {}
+
+    private final String dataPath;
+    private final ExecutorService worker;
+    private final Preallocation preallocation;
+    private final long segmentSize;
+    private final boolean durable;
+    private long lastNameMillis;
+    private Future<Prepared> next;
+
+    /**
+     * @param worker   runs preparing and sealing, in order with the hint writes queued on it
+     * @param durable  whether new segments and seals are synced to disk
+     */
+    SegmentRoller(final String dataPath, final ExecutorService worker, final Preallocation preallocation,
+                  final long segmentSize, final boolean durable, final String activeSegmentName) {
+        this.dataPath = dataPath;
+        this.worker = worker;
+        this.preallocation = preallocation;
+        this.segmentSize = segmentSize;
+        this.durable = durable;
+        this.lastNameMillis = Long.parseLong(activeSegmentName.substring(0, activeSegmentName.indexOf('.')));
+    }
+
+    static Preallocation parsePreallocation(final String value) {
+        return switch (value) {
+            case "none" -> Preallocation.NONE;
+            case "sparse" -> Preallocation.SPARSE;
+            case "fill" -> Preallocation.FILL;
+            default -> throw new UnsupportedOperationException("Unsupported segment preallocation specified");
+        };
+    }
+
+    // starts preparing the segment that the next rollover will switch to
+    void prepareNext() {
+        // names have to sort after the active segment even if it was created in the same millisecond
+        lastNameMillis = Math.max(System.currentTimeMillis(), lastNameMillis + 1);
+        final String name = lastNameMillis + DATA_FILE_SUFFIX;
+        next = worker.submit(() -> prepare(name));
+    }
+
+    /**
+     * Returns the prepared segment, waiting for it only if it isn't ready yet.
+     */
+    Prepared takeNext() throws IOException, InterruptedException {
+        try {
+            return next.get();
+        } catch (final ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Ends a segment whose records end at {@code end}: writes its end marker, trims it right after
+     * the marker and closes the write channel.
+     */
+    void seal(final String name, final FileChannel writeChannel, final long end) {
+        worker.execute(() -> {
+            try (writeChannel) {
+                final ByteBuffer marker = DiskRecord.endMarker(end);
+                while (marker.hasRemaining()) {
+                    writeChannel.write(marker, end + marker.position());
+                }
+                writeChannel.truncate(end + DiskRecord.END_MARKER_SIZE);
+                if (durable) {
+                    writeChannel.force(true);
+                }
+            } catch (final IOException e) {
+                // the segment stays readable; its unused space is only trimmed at the next startup
+                logger.warn("Unable to seal segment {}", name, e);
+            }
+        });
+    }
+
+    private Prepared prepare(final String name) throws IOException {
+        final Path path = Path.of(dataPath + name);
+        final FileChannel writeChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            switch (preallocation) {
+                case SPARSE -> writeChannel.write(ByteBuffer.allocate(1), segmentSize - 1);
+                case FILL -> fill(writeChannel);
+                case NONE -> { }
+            }
+
+            if (durable) {
+                writeChannel.force(true);
+                SingleThreadedStorageEngine.syncDirectory(dataPath);
+            }
+
+            return new Prepared(name, writeChannel);
+        } catch (final IOException e) {
+            writeChannel.close();
+            throw e;
+        }
+    }
+
+    private void fill(final FileChannel channel) throws IOException {
+        final ByteBuffer zeros = ByteBuffer.allocateDirect(FILL_BUFFER_SIZE);
+        long position = 0;
+        while (position < segmentSize) {
+            zeros.clear().limit((int) Math.min(FILL_BUFFER_SIZE, segmentSize - position));
+            while (zeros.hasRemaining()) {
+                position += channel.write(zeros, position);
+            }
+        }
+    }
+}
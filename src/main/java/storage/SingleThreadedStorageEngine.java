@@ -1,75 +1,234 @@
 package storage;
 
 import config.ConfigManager;
+import exceptions.BusyException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import storage.disk.ConcurrentDiskStore;
+import storage.disk.DiskRecord;
 import storage.disk.DiskStore;
+import storage.disk.HintFile;
+import storage.disk.PipelinedWriter;
+import storage.disk.SegmentScanner;
 import storage.disk.SerialDiskStore;
-import storage.disk.WriteResult;
+import storage.disk.WriteResults;
+import storage.mem.ConcurrentMemStore;
 import storage.mem.MemRecord;
 import storage.mem.MemStore;
+import storage.mem.OffHeapMemStore;
 import storage.mem.UnsafeMemStore;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static legacy.engine.LogWriter.FLUSH_TOMBSTONE_VALUE;
+import static legacy.engine.LogWriter.TOMBSTONE_VALUE;
 
 public class SingleThreadedStorageEngine implements StorageEngine {
     private static final Logger logger = LoggerFactory.getLogger(SingleThreadedStorageEngine.class);
-    private static final int MAX_BATCH_SIZE = 1000;
     private static final int MAX_WRITE_CHANNEL_SIZE = 64 * 1024 * 1024; // 64 MB
+    private static final long IDLE_POLL_MILLIS = 100;
+    public static final String DATA_FILE_SUFFIX = ".data";
+    // only segment files are opened; partition directories and anything else in the data path are skipped
+    public static final FileFilter DATA_FILE_FILTER = file -> file.isFile() && file.getName().endsWith(DATA_FILE_SUFFIX);
+    // <millis>.data, or <millis>.<n>.data for the n-th merge output of that segment
+    private static final Pattern SEGMENT_NAME = Pattern.compile("(\\d{1,18})(?:\\.(\\d{1,18}))?" + Pattern.quote(DATA_FILE_SUFFIX));
+    /**
+     * Oldest segment first. Segments are ordered by their creation millis and merge outputs by
+     * their sequence number, both compared as numbers so base.10 comes after base.9; a merge
+     * output comes right before the segment its name is based on, which it is older than.
+     */
+    public static final Comparator<String> SEGMENT_NAME_ORDER = SingleThreadedStorageEngine::compareSegmentNames;
     private final DiskStore diskStore;
     private final MemStore memStore;
     private final String DATA_PATH;
 
     private final Thread writeThread; // Keep a reference to the thread
-    private final BlockingQueue<AsyncWriteRequest> writeQueue;
-    private final Map<String, FileChannel> fileNamesToReadChannels;
+    private final WriteRing<AsyncWriteRequest> writeQueue;
     private volatile boolean running = true;
-
-    String currentWriteFileName;
+    private final WriteBudget writeBudget;
+
+    private final Durability durability;
+    private final long pollTimeoutMillis;
+    private final FsyncStats fsyncStats = new FsyncStats();
+    private final BatchController batchController;
+    // only touched by the write thread
+    private long unsyncedRecords;
+    private long lastSyncNanos = System.nanoTime();
+
+    // every data file by id; read by every server thread, updated by the write thread
+    private final SegmentRegistry segments = new SegmentRegistry();
+    // bumped by the write thread at every FLUSH; keydir entries of older epochs count as absent
+    private volatile int epoch;
+    // the epoch of a deleted key's keydir entry; it never matches, so the key reads as absent
+    private static final int DELETED_EPOCH = -1;
+    // write thread only: a FLUSH or delete may have left keydir entries that merges should purge
+    private boolean mayHoldDeadEntries;
+    private final ChannelCache readChannels;
+    // work other threads need done on the write thread, which is the only one that mutates the keydir
+    private final Queue<Runnable> writeThreadTasks = new ConcurrentLinkedQueue<>();
+    private final SegmentMerger segmentMerger;
+    // seals finished segments, prepares the next one and writes hints, in that order
+    private final ExecutorService segmentWorker;
+    private final SegmentRoller segmentRoller;
+    // null when storage.cache.bytes is 0
+    private final ValueCache valueCache;
+    // null unless storage.writer is pipelined
+    private final PipelinedWriter pipelinedWriter;
+
+    private Segment currentSegment;
     FileChannel writeChannel;
 
     public SingleThreadedStorageEngine() throws IOException {
-        this.diskStore = new SerialDiskStore();
-        this.memStore = new UnsafeMemStore();
+        this(new ConfigManager("config.properties").getProperty("datapath"), "storage-write-thread",
+                createWriteBudget(new ConfigManager("config.properties")),
+                new ConfigManager("config.properties").getLongProperty("storage.cache.bytes", 0));
+    }
 
-        currentWriteFileName = "";
-        writeQueue = new ArrayBlockingQueue<>(1000000);
-        ConfigManager configManager = new ConfigManager("config.properties");
-        DATA_PATH = configManager.getProperty("datapath");
+    /**
+     * Creates an engine that owns every data file under {@code dataPath}. The multi-threaded
+     * engine uses this to run one engine per partition, each in its own directory, all drawing
+     * on the same write budget and each caching its share of the process's cache bytes.
+     */
+    SingleThreadedStorageEngine(final String dataPath, final String writeThreadName, final WriteBudget writeBudget,
+                                final long cacheBytes) throws IOException {
+        DATA_PATH = dataPath;
+        this.writeBudget = writeBudget;
+        Files.createDirectories(Path.of(DATA_PATH));
+        SegmentMerger.deleteLeftovers(DATA_PATH);
+        deleteStaleHints();
+
+        final ConfigManager configManager = new ConfigManager("config.properties");
+        final String diskStoreType = configManager.getProperty("storage.disk", "concurrent");
+        switch (diskStoreType) {
+            case "concurrent" -> this.diskStore = new ConcurrentDiskStore();
+            case "serial" -> this.diskStore = new SerialDiskStore();
+            default -> throw new UnsupportedOperationException("Unsupported disk store type specified");
+        }
+        durability = Durability.parse(configManager.getProperty("storage.durability", "none"));
+        pollTimeoutMillis = durability.mode() == Durability.Mode.INTERVAL
+                ? Math.min(durability.intervalMillis(), IDLE_POLL_MILLIS)
+                : IDLE_POLL_MILLIS;
+
+        writeQueue = new WriteRing<>(1000000);
+        batchController = new BatchController(configManager.getIntProperty("storage.batch.max.size", 1000),
+                configManager.getLongProperty("storage.batch.target.latency.us", 0),
+                configManager.getLongProperty("storage.batch.linger.max.us", 500));
+
+        readChannels = new ChannelCache(DATA_PATH, configManager.getIntProperty("storage.read.channels.max", 64));
+        deleteUnusedPreallocatedSegment();
+        final String activeSegmentName = getActiveSegmentName();
+        truncateTornTail(activeSegmentName);
+        trimUnsealedSegments(activeSegmentName);
+        writeChannel = openWriteChannel(activeSegmentName);
+        registerSegments(activeSegmentName);
+
+        final boolean parallelLoad = switch (configManager.getProperty("storage.keydir.load", "serial")) {
+            case "serial" -> false;
+            case "parallel" -> true;
+            default -> throw new UnsupportedOperationException("Unsupported keydir load mode specified");
+        };
+        final ToIntFunction<String> segmentIds = name -> segments.get(name).id();
+        switch (configManager.getProperty("storage.keydir", "concurrent")) {
+            case "concurrent" -> this.memStore = new ConcurrentMemStore(DATA_PATH, parallelLoad, segmentIds);
+            case "heap" -> this.memStore = new UnsafeMemStore(DATA_PATH, parallelLoad, segmentIds);
+            case "offheap" -> this.memStore = new OffHeapMemStore(DATA_PATH, parallelLoad, segmentIds);
+            default -> throw new UnsupportedOperationException("Unsupported keydir type specified");
+        }
+        countLiveBytes();
+
+        valueCache = cacheBytes > 0 ? new ValueCache(cacheBytes) : null;
+
+        segmentWorker = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, writeThreadName.replace("write", "segment"));
+            thread.setDaemon(true);
+            return thread;
+        });
+        segmentRoller = new SegmentRoller(DATA_PATH, segmentWorker,
+                SegmentRoller.parsePreallocation(configManager.getProperty("storage.segment.preallocate", "sparse")),
+                MAX_WRITE_CHANNEL_SIZE, durability.mode() != Durability.Mode.NONE, activeSegmentName);
+        segmentRoller.prepareNext();
+        // segments sealed by a previous run that died before their hint was written,
+        // or whose hint was written by an older version
+        for (final Segment segment : getSealedSegments()) {
+            if (!HintFile.isCurrent(Path.of(DATA_PATH + segment.name()))) {
+                writeHintInBackground(segment.name());
+            }
+        }
 
-        writeChannel = getWriteFileChannel();
-        fileNamesToReadChannels = new HashMap<>();
-        constructReadChannelsMap();
+        pipelinedWriter = switch (configManager.getProperty("storage.writer", "serial")) {
+            case "serial" -> null;
+            case "pipelined" -> new PipelinedWriter(writeThreadName.replace("write", "io"));
+            default -> throw new UnsupportedOperationException("Unsupported writer mode specified");
+        };
 
         // a single thread will read from the queue and write to disk
-        writeThread = new Thread(this::processWriteQueue, "storage-write-thread");
+        writeThread = new Thread(pipelinedWriter == null ? this::processWriteQueue : this::processWriteQueuePipelined, writeThreadName);
         writeThread.start();
 
-        logger.info("Storage engine initialized. Write thread started.");
+        if (configManager.getBooleanProperty("storage.merge.enabled", false)) {
+            segmentMerger = new SegmentMerger(this, DATA_PATH, writeThreadName.replace("write", "merge"),
+                    configManager.getIntProperty("storage.merge.interval.ms", 60000),
+                    configManager.getDoubleProperty("storage.merge.min.dead.ratio", 0.5),
+                    MAX_WRITE_CHANNEL_SIZE,
+                    configManager.getIntProperty("storage.merge.max.bytes.per.sec", 32 * 1024 * 1024));
+            segmentMerger.start();
+        } else {
+            segmentMerger = null;
+        }
+
+        logger.info("Storage engine initialized with {} durability. Write thread started.", durability);
         addShutdownHook();
     }
 
+    static WriteBudget createWriteBudget(final ConfigManager configManager) {
+        return new WriteBudget(configManager.getLongProperty("storage.write.budget.bytes", 256L * 1024 * 1024),
+                configManager.getLongProperty("storage.write.admission.timeout.ms", 1000));
+    }
+
+    /**
+     * Queues the write, first waiting for room in the write budget if needed.
+     *
+     * @throws BusyException if there is no room before the admission timeout
+     */
     @Override
     public CompletableFuture<Void> write(String key, String value) {
+        return enqueue(key, value);
+    }
+
+    private CompletableFuture<Void> enqueue(final String key, final String value) {
+        writeBudget.acquire(key, value);
         CompletableFuture<Void> future = new CompletableFuture<>();
         AsyncWriteRequest asyncWriteRequest = new AsyncWriteRequest(key, value, future);
 
         if (!writeQueue.offer(asyncWriteRequest)) {
-            throw new RuntimeException("Write queue is full");
+            // only possible with many tiny writes; the budget is what normally pushes back
+            writeBudget.release(key, value);
+            throw new BusyException("Write queue is full");
         }
 
         return future;
@@ -77,60 +236,245 @@ public class SingleThreadedStorageEngine implements StorageEngine {
 
     @Override
     public CompletableFuture<String> read(final String key) {
-        final Optional<MemRecord> memRecord = memStore.read(key);
+        // a merge can delete the segment between the keydir lookup and the disk read;
+        // by then the keydir already points at the merged copy, so looking it up again is enough
+        for (int attempt = 0; ; attempt++) {
+            final int currentEpoch = epoch;
+            final Optional<MemRecord> memRecord = memStore.read(key);
+
+            if (memRecord.isEmpty() || memRecord.get().epoch() != currentEpoch) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            final Segment segment = segments.get(memRecord.get().segmentId());
+            try {
+                if (segment != null) {
+                    return CompletableFuture.completedFuture(readValue(key, memRecord.get(), segment));
+                }
+            } catch (final ClosedChannelException e) {
+                if (attempt > 0) {
+                    logger.error("Exception while reading request", e);
+                    throw new RuntimeException(e);
+                }
+            } catch (final IOException e) {
+                logger.error("Exception while reading request", e);
+                throw new RuntimeException(e);
+            }
 
-        if (memRecord.isEmpty()) {
-            return CompletableFuture.completedFuture(null);
+            if (attempt > 0) {
+                throw new IllegalStateException("Segment " + memRecord.get().segmentId() + " is missing for key " + key);
+            }
+        }
+    }
+
+    private String readValue(final String key, final MemRecord memRecord, final Segment segment) throws IOException {
+        if (valueCache == null) {
+            return readFromDisk(memRecord, segment);
         }
 
+        final String cached = valueCache.get(key, segment.id(), memRecord.valueOffset());
+        if (cached != null) {
+            return cached;
+        }
+
+        final String value = readFromDisk(memRecord, segment);
+        valueCache.put(key, segment.id(), memRecord.valueOffset(), value);
+        return value;
+    }
+
+    private String readFromDisk(final MemRecord memRecord, final Segment segment) throws IOException {
+        final FileChannel channel = readChannels.acquire(segment);
         try {
-            final String value = diskStore.read(memRecord.get().valueOffset(), fileNamesToReadChannels.get(memRecord.get().filename()));
-            return CompletableFuture.completedFuture(value);
-        } catch (final IOException e) {
-            logger.error("Exception while reading request", e);
-            throw new RuntimeException(e);
+            return diskStore.read(memRecord.valueOffset(), memRecord.valueLength(), channel);
+        } finally {
+            readChannels.release(segment);
         }
     }
 
+    /**
+     * Deletes a key by writing a tombstone for it. The keydir keeps an entry for the tombstone, in
+     * an epoch that never matches, so the key reads as absent; the tombstone keeps older records of
+     * the key out of the keydir after a restart, until merges have dropped them.
+     */
     @Override
-    public CompletableFuture<Void> delete(String key) {
-        return null;
+    public CompletableFuture<Void> delete(final String key) {
+        return enqueue(key, TOMBSTONE_VALUE);
     }
 
+    /**
+     * Empties the store in constant time. A flush marker goes through the write queue like any
+     * write, and when its batch commits the write thread moves on to a new epoch: every key
+     * written before it reads as absent from then on. The old records stay on disk, all dead,
+     * until merges reclaim them, and the marker keeps them out of the keydir after a restart.
+     */
     @Override
     public CompletableFuture<Void> flush() {
-        return null;
+        return enqueue(FLUSH_TOMBSTONE_VALUE, "");
     }
 
     @Override
     public String getStatus() {
-        return "";
+        long totalBytes = 0;
+        long liveBytes = 0;
+        for (final Segment segment : segments.all()) {
+            totalBytes += segment.getTotalBytes();
+            liveBytes += segment.getLiveBytes();
+        }
+
+        return String.format("""
+                Write Queue Depth:   %d
+                Write Budget:        %d of %d bytes used, %d writes rejected
+                Durability:          %s
+                Batching:            %s
+                Batch Sizes:         %s
+                Fsyncs:              %d
+                Records per Fsync:   %.1f
+                Fsync Latency:       %.3f ms avg, %.3f ms max
+                Segments:            %d (%d bytes, %d live)
+                Value Cache:         %s
+                Read Channels:       %s
+                """, writeQueue.size(), writeBudget.getUsedBytes(), writeBudget.getCapacity(), writeBudget.getRejections(), durability,
+                batchController.getStatus(), batchController.getHistogram(), fsyncStats.getFsyncCount(), fsyncStats.getRecordsPerFsync(),
+                fsyncStats.getAverageLatencyMillis(), fsyncStats.getMaxLatencyMillis(),
+                segments.all().size(), totalBytes, liveBytes, getCacheStatus(),
+                String.format("%d open of %d, %d hits, %d misses, %d evictions", readChannels.getOpen(),
+                        readChannels.getMaxOpen(), readChannels.getHits(), readChannels.getMisses(), readChannels.getEvictions()));
+    }
+
+    private String getCacheStatus() {
+        if (valueCache == null) {
+            return "disabled";
+        }
+
+        return String.format("%d hits, %d misses, %d evictions, %d bytes",
+                valueCache.getHits(), valueCache.getMisses(), valueCache.getEvictions(), valueCache.getBytes());
     }
 
     private void processWriteQueue() {
+        // reused from batch to batch, like the disk store's encoding buffer
+        final List<AsyncWriteRequest> batch = new ArrayList<>(batchController.maxBatchSize());
         while (running && !Thread.currentThread().isInterrupted()) {
             try {
-                final List<AsyncWriteRequest> batch = new ArrayList<>(MAX_BATCH_SIZE);
+                runWriteThreadTasks();
+                batch.clear();
 
                 // logger.info("Queue size:" + writeQueue.size());
-                final AsyncWriteRequest writeRequest = writeQueue.take();
+                // poll rather than take so interval fsyncs still happen while the queue is idle
+                final AsyncWriteRequest writeRequest = writeQueue.poll(pollTimeoutMillis, TimeUnit.MILLISECONDS);
+                if (writeRequest == null) {
+                    syncIfDue();
+                    continue;
+                }
                 batch.add(writeRequest);
+                fillBatch(batch, true);
+
+                final long writeStart = System.nanoTime();
+                final WriteResults writeResults;
+                try {
+                    writeResults = diskStore.write(batch, writeChannel);
+                } catch (final IOException e) {
+                    // the disk store has logged it; nothing of the batch counts as written
+                    failBatch(batch, e);
+                    continue;
+                }
+                unsyncedRecords += batch.size();
+
+                if (durability.mode() == Durability.Mode.BATCH) {
+                    // group commit: a single fsync covers every record in the batch,
+                    // and none of them is acknowledged before it completes
+                    try {
+                        sync();
+                    } catch (final IOException e) {
+                        logger.error("fsync failed, failing a batch of {} writes", batch.size(), e);
+                        failBatch(batch, e);
+                        continue;
+                    }
+                }
+
+                applyBatch(batch, writeResults);
+                batchController.record(batch.size(), System.nanoTime() - writeStart);
+                syncIfDue();
+
+                if (writeChannel.position() > MAX_WRITE_CHANNEL_SIZE) {
+                    rollOver(writeChannel.position());
+                }
 
-                writeQueue.drainTo(batch, MAX_BATCH_SIZE - 1);
-                final List<WriteResult> writeResults = diskStore.write(batch, writeChannel);
+            } catch (InterruptedException e) {
+                logger.error("Error processing write queue", e);
+                break;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
 
-                for (int i = 0; i < writeResults.size(); i++) {
-                    final AsyncWriteRequest batchItem = batch.get(i);
-                    memStore.write(batchItem.key(), writeResults.get(i).offset(), currentWriteFileName, writeResults.get(i).timestamp());
+        stopProcessing();
+    }
 
-                    // set value to null since the CompletableFuture is of void type
-                    batchItem.future().complete(null);
+    /**
+     * Pipelined variant of {@link #processWriteQueue}: batch N+1 is drained and encoded while the
+     * I/O thread writes batch N. Batch N is applied to the keydir and acknowledged once it has
+     * landed, while batch N+1 is being written, so batches still commit in order.
+     */
+    private void processWriteQueuePipelined() {
+        final List<List<AsyncWriteRequest>> batches = List.of(new ArrayList<>(batchController.maxBatchSize()),
+                new ArrayList<>(batchController.maxBatchSize()));
+        int nextBatch = 0;
+        PipelinedWriter.Batch inFlight = null;
+        long writeOffset;
+        try {
+            writeOffset = writeChannel.position();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        while (running && !Thread.currentThread().isInterrupted()) {
+            try {
+                runWriteThreadTasks();
+                final List<AsyncWriteRequest> batch = batches.get(nextBatch);
+                batch.clear();
+
+                // with a batch in flight, don't wait for more work: finish that batch first
+                final AsyncWriteRequest writeRequest = inFlight == null
+                        ? writeQueue.poll(pollTimeoutMillis, TimeUnit.MILLISECONDS)
+                        : writeQueue.poll();
+                if (writeRequest == null) {
+                    if (inFlight != null) {
+                        completeInFlight(inFlight, null);
+                        inFlight = null;
+                    }
+                    syncIfDue();
+                    continue;
+                }
+                batch.add(writeRequest);
+                // the batch in flight already gathers the next one; lingering would only hold back its acknowledgement
+                fillBatch(batch, inFlight == null);
+
+                if (writeOffset > MAX_WRITE_CHANNEL_SIZE) {
+                    // a segment is only sealed once everything written to it has landed
+                    if (inFlight != null) {
+                        completeInFlight(inFlight, null);
+                        inFlight = null;
+                    }
+                    rollOver(writeOffset);
+                    writeOffset = 0;
                 }
 
-                if (writeChannel.position() > MAX_WRITE_CHANNEL_SIZE) {
-                    updateCurrentWriteFile();
+                // encoding overlaps the write of the batch in flight
+                final PipelinedWriter.Batch encoded = pipelinedWriter.encode(batch, writeOffset);
+                nextBatch ^= 1;
+
+                if (inFlight != null && !completeInFlight(inFlight, encoded)) {
+                    inFlight = null;
+                    continue;
                 }
 
+                pipelinedWriter.write(encoded, writeChannel, durability.mode() == Durability.Mode.BATCH);
+                writeOffset = encoded.endOffset();
+                if (inFlight != null) {
+                    applyInFlight(inFlight);
+                }
+                inFlight = encoded;
+                syncIfDue();
             } catch (InterruptedException e) {
                 logger.error("Error processing write queue", e);
                 break;
@@ -142,19 +486,446 @@ public class SingleThreadedStorageEngine implements StorageEngine {
         stopProcessing();
     }
 
-    private void constructReadChannelsMap() throws IOException {
+    /**
+     * Waits for a batch in flight to land, applying it right away unless {@code next} is given, in
+     * which case the caller applies it once {@code next} is handed to the I/O thread. Returns
+     * false if only the batch's sync failed: its futures are failed, as are {@code next}'s.
+     */
+    private boolean completeInFlight(final PipelinedWriter.Batch inFlight, final PipelinedWriter.Batch next)
+            throws InterruptedException {
+        try {
+            inFlight.await();
+        } catch (final IOException e) {
+            failBatch(inFlight.requests(), e);
+            if (next != null) {
+                failBatch(next.requests(), e);
+            }
+
+            if (!inFlight.written()) {
+                // the file may now have a gap, so nothing more can go after it; same as a failed serial write
+                throw new RuntimeException(e);
+            }
+
+            logger.error("fsync failed, failing a batch of {} writes", inFlight.requests().size(), e);
+            return false;
+        }
+
+        if (next == null) {
+            applyInFlight(inFlight);
+        }
+        return true;
+    }
+
+    private void applyInFlight(final PipelinedWriter.Batch inFlight) {
+        unsyncedRecords += inFlight.requests().size();
+        if (inFlight.syncNanos() >= 0) {
+            lastSyncNanos = System.nanoTime();
+            fsyncStats.record(unsyncedRecords, inFlight.syncNanos());
+            unsyncedRecords = 0;
+        }
+
+        applyBatch(inFlight.requests(), inFlight.results());
+        batchController.record(inFlight.requests().size(), System.nanoTime() - inFlight.startNanos());
+    }
+
+    /**
+     * Drains the queue up to the batch cap and, if allowed and the controller thinks it's worth it,
+     * lingers briefly for more records to share the batch's write and fsync.
+     */
+    private void fillBatch(final List<AsyncWriteRequest> batch, final boolean mayLinger) throws InterruptedException {
+        final int cap = batchController.cap();
+        writeQueue.drainTo(batch, cap - batch.size());
+
+        final long lingerNanos = mayLinger ? batchController.lingerNanos(batch.size()) : 0;
+        if (lingerNanos == 0) {
+            return;
+        }
+
+        final int drained = batch.size();
+        final long deadline = System.nanoTime() + lingerNanos;
+        long remaining = lingerNanos;
+        while (batch.size() < cap && remaining > 0) {
+            final AsyncWriteRequest writeRequest = writeQueue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (writeRequest == null) {
+                break;
+            }
+            batch.add(writeRequest);
+            writeQueue.drainTo(batch, cap - batch.size());
+            remaining = deadline - System.nanoTime();
+        }
+        batchController.recordLinger(batch.size() - drained);
+    }
+
+    // points the keydir at the batch's records and acknowledges them
+    private void applyBatch(final List<AsyncWriteRequest> batch, final WriteResults writeResults) {
+        for (int i = 0; i < writeResults.count(); i++) {
+            final AsyncWriteRequest batchItem = batch.get(i);
+            if (batchItem.key().equals(FLUSH_TOMBSTONE_VALUE)) {
+                startEpoch(writeResults.size(i));
+                batchItem.future().complete(null);
+                continue;
+            }
+
+            final boolean deleted = batchItem.value().equals(TOMBSTONE_VALUE);
+            final MemRecord previous = memStore.write(batchItem.key(), writeResults.valueOffset(i), writeResults.valueLength(i),
+                    currentSegment.id(), writeResults.timestamp(i), writeResults.size(i), deleted ? DELETED_EPOCH : epoch);
+            if (deleted) {
+                currentSegment.addDeadRecord(writeResults.size(i));
+                mayHoldDeadEntries = true;
+            } else {
+                currentSegment.addRecord(writeResults.size(i));
+                if (valueCache != null) {
+                    valueCache.update(batchItem.key(), currentSegment.id(), writeResults.valueOffset(i), batchItem.value());
+                }
+            }
+            releaseLiveBytes(previous);
+
+            // set value to null since the CompletableFuture is of void type
+            batchItem.future().complete(null);
+        }
+        writeBudget.release(batch);
+    }
+
+    // a flush: nothing written so far is live anymore
+    private void startEpoch(final int markerSize) {
+        epoch++;
+        mayHoldDeadEntries = true;
+        for (final Segment segment : segments.all()) {
+            segment.clearLive();
+        }
+        currentSegment.addDeadRecord(markerSize);
+    }
+
+    private void failBatch(final List<AsyncWriteRequest> batch, final Throwable e) {
+        batch.forEach(batchItem -> batchItem.future().completeExceptionally(e));
+        writeBudget.release(batch);
+    }
+
+    /**
+     * Switches to the segment prepared in the background and hands the finished one, whose
+     * records end at {@code end}, over to be sealed and get its hint.
+     */
+    private void rollOver(final long end) throws IOException, InterruptedException {
+        if (durability.mode() != Durability.Mode.NONE && unsyncedRecords > 0) {
+            // the old segment stops being synced once we move on, so sync it one last time
+            sync();
+        }
+
+        final SegmentRoller.Prepared next = segmentRoller.takeNext();
+        final Segment sealedSegment = currentSegment;
+        final FileChannel sealedChannel = writeChannel;
+
+        writeChannel = next.writeChannel();
+        sealedSegment.seal();
+        currentSegment = segments.register(next.name(), 0, false);
+        segmentRoller.prepareNext();
+
+        segmentRoller.seal(sealedSegment.name(), sealedChannel, end);
+        writeHintInBackground(sealedSegment.name());
+    }
+
+    CompletableFuture<Void> runOnWriteThread(final Runnable task) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        writeThreadTasks.add(() -> {
+            try {
+                task.run();
+                future.complete(null);
+            } catch (final Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+
+        return future;
+    }
+
+    private void runWriteThreadTasks() {
+        Runnable task;
+        while ((task = writeThreadTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Runs on the write thread. Repoints every keydir entry that still refers to the record the
+     * merger copied, then deletes the merged segments that nothing points into anymore and purges
+     * the flushed and deleted keys' entries that pointed into them.
+     */
+    void installMergedSegment(final List<Segment> mergedSegments, final String outputName,
+                              final List<SegmentMerger.Relocation> relocations) {
+        try {
+            // the merger renamed the output into place; that has to be durable before any input is deleted
+            syncDataDirectory();
+
+            if (outputName != null) {
+                final Segment output = segments.register(outputName, Files.size(Path.of(DATA_PATH + outputName)), true);
+
+                for (final SegmentMerger.Relocation relocation : relocations) {
+                    final Optional<MemRecord> current = memStore.read(relocation.key());
+
+                    // skip keys that were overwritten while the merge was running
+                    // and keys flushed meanwhile
+                    if (current.isPresent()
+                            && current.get().valueOffset() == relocation.fromValueOffset()
+                            && current.get().segmentId() == relocation.fromSegment()
+                            && current.get().epoch() == epoch) {
+                        final MemRecord previous = memStore.write(relocation.key(), relocation.toValueOffset(),
+                                relocation.valueLength(), output.id(), relocation.timestamp(), relocation.size(), epoch);
+                        output.addLive(relocation.size());
+                        releaseLiveBytes(previous);
+                    }
+                }
+            }
+
+            final Set<Integer> deletedSegments = new HashSet<>();
+            for (final Segment segment : mergedSegments) {
+                if (segment.getLiveBytes() > 0) {
+                    logger.warn("Segment {} still has {} live bytes after merging, keeping it", segment.name(), segment.getLiveBytes());
+                    continue;
+                }
+
+                segments.remove(segment);
+                readChannels.retire(segment);
+                Files.deleteIfExists(Path.of(DATA_PATH + segment.name()));
+                Files.deleteIfExists(HintFile.hintPathFor(Path.of(DATA_PATH + segment.name())));
+                deletedSegments.add(segment.id());
+            }
+
+            syncDataDirectory();
+            purgeDeadEntries(deletedSegments);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // entries of flushed or deleted keys read as absent but would otherwise stay in the keydir for good,
+    // pointing at segments that no longer exist
+    private void purgeDeadEntries(final Set<Integer> deletedSegments) {
+        if (!mayHoldDeadEntries || deletedSegments.isEmpty()) {
+            return;
+        }
+
+        final List<String> purged = new ArrayList<>();
+        final int[] remaining = {0};
+        memStore.forEach((key, memRecord) -> {
+            if (memRecord.epoch() == epoch) {
+                return;
+            }
+            if (deletedSegments.contains(memRecord.segmentId())) {
+                purged.add(key);
+            } else {
+                remaining[0]++;
+            }
+        });
+
+        // removed after the walk, since a removal can rebuild the table being walked
+        for (final String key : purged) {
+            memStore.remove(key);
+        }
+        mayHoldDeadEntries = remaining[0] > 0;
+        logger.info("Purged {} flushed or deleted keys from the keydir, {} left until their segments are merged",
+                purged.size(), remaining[0]);
+    }
+
+    private void writeHintInBackground(final String segment) {
+        segmentWorker.execute(() -> {
+            try {
+                HintFile.write(Path.of(DATA_PATH + segment));
+            } catch (final IOException e) {
+                // without a hint the segment is scanned at startup, which is slower but still correct
+                logger.warn("Unable to write hint for segment {}", segment, e);
+            }
+        });
+    }
+
+    // hints whose segment was merged away, and temp files of hints that were never finished
+    private void deleteStaleHints() throws IOException {
+        final File[] hints = new File(DATA_PATH).listFiles(file -> file.getName().contains(HintFile.HINT_FILE_SUFFIX));
+        if (hints == null) {
+            return;
+        }
+
+        final File[] segments = new File(DATA_PATH).listFiles(DATA_FILE_FILTER);
+        final Set<Path> liveHints = new HashSet<>();
+        for (final File segment : segments == null ? new File[0] : segments) {
+            liveHints.add(HintFile.hintPathFor(segment.toPath()));
+        }
+
+        for (final File hint : hints) {
+            if (!liveHints.contains(hint.toPath())) {
+                Files.deleteIfExists(hint.toPath());
+            }
+        }
+    }
+
+    private void releaseLiveBytes(final MemRecord previous) {
+        // a flush already released everything from older epochs
+        if (previous == null || previous.epoch() != epoch) {
+            return;
+        }
+
+        final Segment segment = segments.get(previous.segmentId());
+        if (segment != null) {
+            segment.removeLive(previous.size());
+        }
+    }
+
+    // oldest first
+    List<Segment> getSealedSegments() {
+        return segments.sealed();
+    }
+
+    MemStore getMemStore() {
+        return memStore;
+    }
+
+    int getEpoch() {
+        return epoch;
+    }
+
+    ChannelCache getReadChannels() {
+        return readChannels;
+    }
+
+    private void syncIfDue() {
+        if (durability.mode() != Durability.Mode.INTERVAL || unsyncedRecords == 0) {
+            return;
+        }
+
+        if (System.nanoTime() - lastSyncNanos < TimeUnit.MILLISECONDS.toNanos(durability.intervalMillis())) {
+            return;
+        }
+
+        try {
+            sync();
+        } catch (final IOException e) {
+            // these writes were already acknowledged; all we can do is report it
+            logger.error("Interval fsync of {} records failed", unsyncedRecords, e);
+        }
+    }
+
+    private void sync() throws IOException {
+        final long start = System.nanoTime();
+        diskStore.flush(writeChannel);
+        lastSyncNanos = System.nanoTime();
+
+        fsyncStats.record(unsyncedRecords, lastSyncNanos - start);
+        unsyncedRecords = 0;
+    }
+
+    // ids follow name order, so older segments get lower ids
+    private void registerSegments(final String activeSegmentName) throws IOException {
         final File dir = new File(DATA_PATH);
-        final File[] files = dir.listFiles();
+        final File[] files = dir.listFiles(DATA_FILE_FILTER);
 
         assert files != null;
+        Arrays.sort(files, Comparator.comparing(File::getName, SEGMENT_NAME_ORDER));
         for (final File file : files) {
-            FileChannel readFileChannel = FileChannel.open(
-                    Path.of(file.getAbsolutePath()),
-                    StandardOpenOption.READ);
-            fileNamesToReadChannels.put(file.getName(), readFileChannel);
+            // channels are opened on first read, through the channel cache
+            segments.register(file.getName(), file.length(), !file.getName().equals(activeSegmentName));
+        }
+
+        currentSegment = segments.get(activeSegmentName);
+    }
+
+    /**
+     * A crash can leave a partly written batch at the end of the active segment. Cut the segment
+     * off at the first record that is incomplete or fails its checksum; none of those writes was
+     * acknowledged as durable, and leaving them would put garbage in front of every new record.
+     * Unused preallocated space goes too, as does the end marker of a segment that is being
+     * written to again because the segment after it was never used.
+     */
+    private void truncateTornTail(final String segmentName) throws IOException {
+        final Path segment = Path.of(DATA_PATH + segmentName);
+        if (!Files.exists(segment)) {
+            return;
+        }
+
+        long validLength = SegmentScanner.scanMapped(segment, entry -> { });
+        final long fileSize = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final long dataEnd = validLength - DiskRecord.END_MARKER_SIZE;
+            if (dataEnd >= 0 && readBytes(channel, dataEnd, DiskRecord.END_MARKER_SIZE).equals(DiskRecord.endMarker(dataEnd))) {
+                validLength = dataEnd;
+            }
+            if (validLength == fileSize) {
+                return;
+            }
+
+            if (isPreallocated(channel, validLength)) {
+                logger.info("Trimming {} bytes of unused space from the end of {}", fileSize - validLength, segmentName);
+            } else {
+                logger.warn("Truncating {} bytes of torn records from the end of {}", fileSize - validLength, segmentName);
+            }
+            channel.truncate(validLength);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Seals segments that a crash caught between rollover and sealing: their records are followed
+     * by preallocated space instead of an end marker. Segments with a hint were sealed already.
+     */
+    private void trimUnsealedSegments(final String activeSegmentName) throws IOException {
+        final File[] files = new File(DATA_PATH).listFiles(DATA_FILE_FILTER);
+        for (final File file : files == null ? new File[0] : files) {
+            final Path segment = file.toPath();
+            if (file.getName().equals(activeSegmentName) || HintFile.isCurrent(segment)) {
+                continue;
+            }
+
+            final long validLength = SegmentScanner.scanMapped(segment, entry -> { });
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (validLength == channel.size() || !isPreallocated(channel, validLength)) {
+                    continue;
+                }
+
+                logger.info("Sealing {}, which was left unsealed", file.getName());
+                channel.write(DiskRecord.endMarker(validLength), validLength);
+                channel.truncate(validLength + DiskRecord.END_MARKER_SIZE);
+                channel.force(true);
+            }
         }
     }
 
+    /**
+     * A prepared segment that a crash left before anything was written to it would otherwise be
+     * taken for the active segment, with all of its preallocated space in front of new records.
+     */
+    private void deleteUnusedPreallocatedSegment() throws IOException {
+        final File[] files = new File(DATA_PATH).listFiles(DATA_FILE_FILTER);
+        if (files == null || files.length == 0) {
+            return;
+        }
+
+        final Path newest = Arrays.stream(files).max(Comparator.comparing(File::getName, SEGMENT_NAME_ORDER)).get().toPath();
+        if (Files.size(newest) > 0 && SegmentScanner.scanMapped(newest, entry -> { }) == 0) {
+            logger.info("Deleting unused segment {}", newest.getFileName());
+            Files.delete(newest);
+            Files.deleteIfExists(HintFile.hintPathFor(newest));
+            syncDataDirectory();
+        }
+    }
+
+    // an all-zero header is where the data ends in preallocated space; anything else there is torn
+    private static boolean isPreallocated(final FileChannel channel, final long offset) throws IOException {
+        final long length = Math.min(Long.BYTES, channel.size() - offset);
+        return length > 0 && readBytes(channel, offset, (int) length).equals(ByteBuffer.allocate((int) length));
+    }
+
+    private static ByteBuffer readBytes(final FileChannel channel, final long offset, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.flip();
+    }
+
+    private void countLiveBytes() {
+        memStore.forEach((key, memRecord) -> segments.get(memRecord.segmentId()).addLive(memRecord.size()));
+    }
+
     private void addShutdownHook() {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             logger.info("Shutdown hook triggered for storage engine. Stopping write thread...");
@@ -181,47 +952,72 @@ public class SingleThreadedStorageEngine implements StorageEngine {
 
     private void stopProcessing() {
         this.running = false;
-        // Interrupt the thread in case it's blocked in writeQueue.take()
+        if (segmentMerger != null) {
+            segmentMerger.stop();
+        }
+        if (segmentWorker != null) {
+            segmentWorker.shutdownNow();
+        }
+        if (pipelinedWriter != null) {
+            pipelinedWriter.stop();
+        }
+        // Interrupt the thread in case it's parked in writeQueue.poll()
         if (writeThread != null) {
             writeThread.interrupt();
         }
     }
 
-    private void updateCurrentWriteFile() throws IOException {
-        currentWriteFileName = System.currentTimeMillis() + ".data";
-        try {
-            writeChannel = FileChannel.open(
-                    Path.of(DATA_PATH + currentWriteFileName),
-                    StandardOpenOption.CREATE,
-                    StandardOpenOption.APPEND
-            );
-
-            FileChannel currentReadFileChannel = FileChannel.open(
-                    Path.of(DATA_PATH + currentWriteFileName),
-                    StandardOpenOption.READ
-            );
-            fileNamesToReadChannels.put(currentWriteFileName, currentReadFileChannel);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    // fsync on a file doesn't cover its directory entry, so a crash could otherwise lose a new segment entirely
+    private void syncDataDirectory() throws IOException {
+        syncDirectory(DATA_PATH);
+    }
+
+    static void syncDirectory(final String path) throws IOException {
+        try (FileChannel directory = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            directory.force(true);
         }
     }
 
-    private FileChannel getWriteFileChannel() throws IOException {
+    private String getActiveSegmentName() {
         final File dir = new File(DATA_PATH);
-        final File[] files = dir.listFiles();
+        final File[] files = dir.listFiles(DATA_FILE_FILTER);
 
         if (files != null && files.length > 0) {
-            Optional<File> latestFile = Arrays.stream(files).max(Comparator.comparing(File::getName));
-            currentWriteFileName = latestFile.get().getName();
-        } else {
-            currentWriteFileName = System.currentTimeMillis() + ".data";
+            Optional<File> latestFile = Arrays.stream(files).max(Comparator.comparing(File::getName, SEGMENT_NAME_ORDER));
+            return latestFile.get().getName();
         }
 
-        return FileChannel.open(
-                Path.of(DATA_PATH + currentWriteFileName),
+        return System.currentTimeMillis() + DATA_FILE_SUFFIX;
+    }
+
+    // not in append mode: records go at the end of the data, which is before any preallocated space
+    private FileChannel openWriteChannel(final String segmentName) throws IOException {
+        final FileChannel channel = FileChannel.open(
+                Path.of(DATA_PATH + segmentName),
                 StandardOpenOption.CREATE,
-                StandardOpenOption.APPEND
+                StandardOpenOption.WRITE
         );
+        channel.position(channel.size());
+        return channel;
+    }
+
+    private static int compareSegmentNames(final String first, final String second) {
+        final Matcher firstName = SEGMENT_NAME.matcher(first);
+        final Matcher secondName = SEGMENT_NAME.matcher(second);
+        if (!firstName.matches() || !secondName.matches()) {
+            return first.compareTo(second);
+        }
+
+        final int byMillis = Long.compare(Long.parseLong(firstName.group(1)), Long.parseLong(secondName.group(1)));
+        if (byMillis != 0) {
+            return byMillis;
+        }
+        return Long.compare(mergeSequence(firstName), mergeSequence(secondName));
+    }
+
+    // the segment a merge output is named after sorts after all of its outputs
+    private static long mergeSequence(final Matcher name) {
+        return name.group(2) == null ? Long.MAX_VALUE : Long.parseLong(name.group(2));
     }
 
 }
@@ -0,0 +1,230 @@
+package storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Byte-bounded cache of decoded values in front of the disk store, using segmented LRU so a
+ * one-off scan can't flush out the hot set: new entries start in a probation segment and only
+ * move to the protected segment on their second hit.
+ * <p>
+ * Each entry remembers the segment and offset it was read from and is only served while the
+ * keydir still points there, so a value read just before a newer write landed is never returned.
+ * The write thread also updates cached keys as their batches commit.
+ */
+class ValueCache {
+    private static final int SHARD_COUNT = 16;
+    private static final double PROTECTED_SHARE = 0.8;
+    // String, entry and map node headers on top of the characters
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final Shard[] shards = new Shard[SHARD_COUNT];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    ValueCache(final long capacityBytes) {
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            shards[i] = new Shard(capacityBytes / SHARD_COUNT);
+        }
+    }
+
+    /**
+     * Returns the cached value if it was read from {@code segmentId} at {@code offset}, or null.
+     */
+    String get(final String key, final int segmentId, final long offset) {
+        final String value = shardFor(key).get(key, segmentId, offset);
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+
+        return value;
+    }
+
+    void put(final String key, final int segmentId, final long offset, final String value) {
+        shardFor(key).put(key, segmentId, offset, value);
+    }
+
+    // only keys that are already cached are updated, so write-only keys don't push out hot ones
+    void update(final String key, final int segmentId, final long offset, final String value) {
+        shardFor(key).update(key, segmentId, offset, value);
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    long getBytes() {
+        long bytes = 0;
+        for (final Shard shard : shards) {
+            bytes += shard.bytes();
+        }
+
+        return bytes;
+    }
+
+    private Shard shardFor(final String key) {
+        final int hash = key.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & (SHARD_COUNT - 1)];
+    }
+
+    private static long sizeOf(final String key, final String value) {
+        return ENTRY_OVERHEAD + 2L * (key.length() + value.length());
+    }
+
+    private record Entry(int segmentId, long offset, String value, long size) {
+        boolean isAt(final int segmentId, final long offset) {
+            return this.segmentId == segmentId && this.offset == offset;
+        }
+    }
+
+    private final class Shard {
+        // both in access order, eldest first
+        private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<String, Entry> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+        private final long capacity;
+        private final long protectedCapacity;
+        private long probationBytes;
+        private long protectedBytes;
+        // not a monitor: readers wait here on connection threads, which may be virtual
+        private final ReentrantLock lock = new ReentrantLock();
+
+        Shard(final long capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = (long) (capacity * PROTECTED_SHARE);
+        }
+
+        String get(final String key, final int segmentId, final long offset) {
+            lock.lock();
+            try {
+                final Entry hot = protectedEntries.get(key);
+                if (hot != null) {
+                    if (hot.isAt(segmentId, offset)) {
+                        return hot.value();
+                    }
+
+                    protectedEntries.remove(key);
+                    protectedBytes -= hot.size();
+                    return null;
+                }
+
+                final Entry entry = probation.remove(key);
+                if (entry == null) {
+                    return null;
+                }
+
+                probationBytes -= entry.size();
+                if (!entry.isAt(segmentId, offset)) {
+                    return null;
+                }
+
+                // second hit: promote, and demote the coldest protected entries back to probation if it overflows
+                protectedEntries.put(key, entry);
+                protectedBytes += entry.size();
+                while (protectedBytes > protectedCapacity) {
+                    final Map.Entry<String, Entry> eldest = protectedEntries.entrySet().iterator().next();
+                    protectedEntries.remove(eldest.getKey());
+                    protectedBytes -= eldest.getValue().size();
+                    probation.put(eldest.getKey(), eldest.getValue());
+                    probationBytes += eldest.getValue().size();
+                }
+                evictIfNeeded();
+
+                return entry.value();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void put(final String key, final int segmentId, final long offset, final String value) {
+            lock.lock();
+            try {
+                final long size = sizeOf(key, value);
+                if (size > capacity) {
+                    return;
+                }
+
+                remove(key);
+                probation.put(key, new Entry(segmentId, offset, value, size));
+                probationBytes += size;
+                evictIfNeeded();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void update(final String key, final int segmentId, final long offset, final String value) {
+            lock.lock();
+            try {
+                final Entry entry = new Entry(segmentId, offset, value, sizeOf(key, value));
+                final Entry hot = protectedEntries.get(key);
+                if (hot != null) {
+                    protectedEntries.put(key, entry);
+                    protectedBytes += entry.size() - hot.size();
+                } else {
+                    final Entry cold = probation.get(key);
+                    if (cold == null) {
+                        return;
+                    }
+
+                    probation.put(key, entry);
+                    probationBytes += entry.size() - cold.size();
+                }
+
+                evictIfNeeded();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long bytes() {
+            lock.lock();
+            try {
+                return probationBytes + protectedBytes;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void remove(final String key) {
+            final Entry hot = protectedEntries.remove(key);
+            if (hot != null) {
+                protectedBytes -= hot.size();
+            }
+
+            final Entry cold = probation.remove(key);
+            if (cold != null) {
+                probationBytes -= cold.size();
+            }
+        }
+
+        private void evictIfNeeded() {
+            while (probationBytes + protectedBytes > capacity) {
+                final LinkedHashMap<String, Entry> victims = probation.isEmpty() ? protectedEntries : probation;
+                final Iterator<Map.Entry<String, Entry>> eldest = victims.entrySet().iterator();
+                final Entry victim = eldest.next().getValue();
+                eldest.remove();
+
+                if (victims == probation) {
+                    probationBytes -= victim.size();
+                } else {
+                    protectedBytes -= victim.size();
+                }
+                evictions.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package storage;
+
+import exceptions.BusyException;
+
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the bytes of writes that are queued or in flight, so a burst of large values slows
+ * writers down instead of exhausting the heap. A write waits for room up to the admission
+ * timeout and is rejected with a {@link BusyException} after that. The bytes are given back once
+ * the write is acknowledged or failed.
+ * <p>
+ * Shared by every partition of a {@link MultiThreadedStorageEngine}, since they share one heap.
+ */
+class WriteBudget {
+    // request, future and String headers on top of the characters
+    private static final int REQUEST_OVERHEAD = 160;
+
+    private final Semaphore bytes;
+    private final int capacity;
+    private final long admissionTimeoutMillis;
+    private final LongAdder rejections = new LongAdder();
+
+    WriteBudget(final long capacityBytes, final long admissionTimeoutMillis) {
+        this.capacity = (int) Math.min(Integer.MAX_VALUE, Math.max(1, capacityBytes));
+        this.bytes = new Semaphore(capacity);
+        this.admissionTimeoutMillis = admissionTimeoutMillis;
+    }
+
+    // waits until the write fits in the budget
+    void acquire(final String key, final String value) {
+        try {
+            if (bytes.tryAcquire(sizeOf(key, value), admissionTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        rejections.increment();
+        throw new BusyException("Write budget of " + capacity + " bytes exhausted");
+    }
+
+    void release(final String key, final String value) {
+        bytes.release(sizeOf(key, value));
+    }
+
+    // the sizes are recomputed rather than remembered, and given back in one go per batch
+    void release(final List<AsyncWriteRequest> batch) {
+        long size = 0;
+        for (final AsyncWriteRequest request : batch) {
+            size += sizeOf(request.key(), request.value());
+        }
+        bytes.release((int) Math.min(capacity, size));
+    }
+
+    // a value bigger than the whole budget only has to wait for the queue to empty
+    private int sizeOf(final String key, final String value) {
+        return (int) Math.min(capacity, REQUEST_OVERHEAD + 2L * (key.length() + value.length()));
+    }
+
+    long getUsedBytes() {
+        return capacity - bytes.availablePermits();
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    long getRejections() {
+        return rejections.sum();
+    }
+}
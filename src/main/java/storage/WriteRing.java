@@ -0,0 +1,148 @@
+package storage;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded multi-producer, single-consumer ring in the style of the LMAX disruptor, used as the
+ * write queue. Producers claim a sequence with one CAS, fill its preallocated slot and publish it;
+ * there is no lock for hundreds of producers to queue up on. The consumer takes whole runs of
+ * published slots and frees them with a single store, so a batch costs one handoff rather than
+ * one per request.
+ * <p>
+ * Only the write thread may call the consuming methods.
+ */
+final class WriteRing<E> {
+    private static final int SPINS_BEFORE_PARK = 64;
+
+    private final Object[] slots;
+    // sequence last published into each slot, so the consumer can tell when a claimed slot is ready
+    private final AtomicLongArray published;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    // consumer only: the next sequence to take
+    private long next;
+    // set while the consumer is parked; the first producer to publish takes it and wakes the consumer
+    private final AtomicReference<Thread> waitingConsumer = new AtomicReference<>();
+
+    WriteRing(final int minCapacity) {
+        final int capacity = minCapacity <= 1 ? 1 : Integer.highestOneBit(minCapacity - 1) << 1;
+        slots = new Object[capacity];
+        published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+        mask = capacity - 1;
+    }
+
+    /**
+     * Adds the element unless the ring is full. Never blocks.
+     */
+    boolean offer(final E element) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed.get() >= slots.length) {
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        final int index = (int) sequence & mask;
+        slots[index] = element;
+        // volatile, so the check below can't be reordered before it and miss a consumer going to sleep
+        published.set(index, sequence);
+
+        final Thread consumer = waitingConsumer.get();
+        if (consumer != null && waitingConsumer.compareAndSet(consumer, null)) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    E poll() {
+        final int index = (int) next & mask;
+        if (published.get(index) != next) {
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        final E element = (E) slots[index];
+        slots[index] = null;
+        consumed.lazySet(++next);
+        return element;
+    }
+
+    /**
+     * Waits up to {@code timeout} for an element: spins briefly, then parks until a producer
+     * publishes one.
+     */
+    E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        E element = poll();
+        for (int spin = 0; element == null && spin < SPINS_BEFORE_PARK; spin++) {
+            Thread.onSpinWait();
+            element = poll();
+        }
+
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (element == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+
+            waitingConsumer.set(Thread.currentThread());
+            // a producer that published before we registered didn't unpark us, so look once more
+            element = poll();
+            if (element == null) {
+                // an unpark that comes before the park isn't lost, it makes the park return at once
+                LockSupport.parkNanos(this, remaining);
+                element = poll();
+            }
+            waitingConsumer.set(null);
+        }
+
+        return element;
+    }
+
+    /**
+     * Moves up to {@code maxElements} published elements into {@code target}, stopping at the first
+     * slot that is claimed but not yet published. The slots are freed with a single store.
+     */
+    int drainTo(final Collection<? super E> target, final int maxElements) {
+        long sequence = next;
+        final long end = next + maxElements;
+        while (sequence < end) {
+            final int index = (int) sequence & mask;
+            if (published.get(index) != sequence) {
+                break;
+            }
+
+            @SuppressWarnings("unchecked")
+            final E element = (E) slots[index];
+            slots[index] = null;
+            target.add(element);
+            sequence++;
+        }
+
+        final int drained = (int) (sequence - next);
+        if (drained > 0) {
+            next = sequence;
+            consumed.lazySet(sequence);
+        }
+        return drained;
+    }
+
+    // claimed but not yet consumed, so it includes requests still being published
+    int size() {
+        return (int) Math.max(0, claimed.get() - consumed.get());
+    }
+}
@@ -0,0 +1,141 @@
+package storage.disk;
+
+import storage.AsyncWriteRequest;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Encodes write batches as v2 records into a direct buffer that is reused from batch to batch.
+ * Keys and values are encoded to UTF-8 straight from their Strings, so a batch allocates no
+ * per-record arrays, and a direct buffer is handed to the kernel without the extra copy the
+ * JDK makes for heap buffers. Belongs to a single writer thread.
+ */
+final class BatchEncoder {
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+    private int[] keyLengths = new int[0];
+    private int[] valueLengths = new int[0];
+    private final CRC32C crc = new CRC32C();
+    private final WriteResults results = new WriteResults();
+
+    /**
+     * Encodes the batch for writing at {@code startOffset} and returns the buffer, ready to be
+     * written. It stays valid until the next call, as does {@link #results()}.
+     */
+    ByteBuffer encode(final List<AsyncWriteRequest> batch, final long startOffset) {
+        final int batchSize = batch.size();
+        if (keyLengths.length < batchSize) {
+            keyLengths = Arrays.copyOf(keyLengths, batchSize);
+            valueLengths = Arrays.copyOf(valueLengths, batchSize);
+        }
+
+        // a first pass sizes the batch and each record's varint lengths
+        long totalSize = 0;
+        for (int i = 0; i < batchSize; i++) {
+            final AsyncWriteRequest request = batch.get(i);
+            keyLengths[i] = utf8Length(request.key());
+            valueLengths[i] = utf8Length(request.value());
+            totalSize += DiskRecord.encodedSize(keyLengths[i], valueLengths[i]);
+        }
+
+        ensureCapacity(totalSize);
+        buffer.clear();
+        results.reset(batchSize);
+
+        long offset = startOffset;
+        for (int i = 0; i < batchSize; i++) {
+            final AsyncWriteRequest request = batch.get(i);
+            final long timestamp = System.currentTimeMillis();
+            final int start = buffer.position();
+
+            buffer.put(DiskRecord.FORMAT_V2);
+            buffer.putInt(0); // checksum, filled in below
+            buffer.putLong(timestamp);
+            DiskRecord.putVarint(buffer, keyLengths[i]);
+            DiskRecord.putVarint(buffer, valueLengths[i]);
+            putUtf8(request.key());
+            final int valuePosition = buffer.position() - start;
+            putUtf8(request.value());
+
+            final int end = buffer.position();
+            buffer.position(start + DiskRecord.V2_CHECKSUMMED_FROM).limit(end);
+            crc.reset();
+            crc.update(buffer);
+            buffer.limit(buffer.capacity());
+            buffer.putInt(start + 1, (int) crc.getValue());
+
+            results.add(offset + valuePosition, valueLengths[i], timestamp, end - start);
+            offset += end - start;
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    WriteResults results() {
+        return results;
+    }
+
+    private void ensureCapacity(final long size) {
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Batch of " + size + " bytes is too large to encode");
+        }
+
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(Math.max((int) size, Integer.highestOneBit((int) size - 1) << 1));
+        }
+    }
+
+    // matches String.getBytes(UTF_8), which encodes an unpaired surrogate as '?'
+    static int utf8Length(final String s) {
+        final int length = s.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                // two chars, four bytes
+                bytes += 2;
+                i++;
+            }
+        }
+
+        return bytes;
+    }
+
+    private void putUtf8(final String s) {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | c >> 6));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            } else if (!Character.isSurrogate(c)) {
+                buffer.put((byte) (0xE0 | c >> 12));
+                buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put((byte) (0xF0 | codePoint >> 18));
+                buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint & 0x3F));
+            } else {
+                buffer.put((byte) '?');
+            }
+        }
+    }
+}
@@ -1,4 +1,74 @@
 package storage.disk;
 
-public class ConcurrentDiskStore {
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storage.AsyncWriteRequest;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A {@link DiskStore} built on positional (pread/pwrite style) channel I/O. Reads never move the
+ * channel position, so any number of threads can read the same file concurrently without a lock.
+ */
+public class ConcurrentDiskStore implements DiskStore {
+    private static final Logger logger = LoggerFactory.getLogger(ConcurrentDiskStore.class);
+    private final ReadBufferPool readBuffers = new ReadBufferPool();
+    private final BatchEncoder encoder = new BatchEncoder();
+
+    @Override
+    public String read(final long valueOffset, final int valueLength, final FileChannel readFileChannel) throws IOException {
+        final ReadBufferPool.ReadBuffer buffer = readBuffers.acquire(valueLength);
+        try {
+            final ByteBuffer direct = buffer.direct();
+            while (direct.hasRemaining()) {
+                if (readFileChannel.read(direct, valueOffset + direct.position()) < 0) {
+                    throw new EOFException("Data file ends before the value at offset " + valueOffset + ". Data is possibly corrupted.");
+                }
+            }
+
+            return buffer.decode();
+        } finally {
+            readBuffers.release(buffer);
+        }
+    }
+
+    @Override
+    public WriteResults write(final List<AsyncWriteRequest> batch, final FileChannel fileChannel) throws IOException {
+        if (batch == null || batch.isEmpty()) {
+            return WriteResults.EMPTY;
+        }
+
+        final long batchStartOffset = fileChannel.position();
+        final ByteBuffer batchBuffer = encoder.encode(batch, batchStartOffset);
+
+        long position = batchStartOffset;
+        try {
+            while (batchBuffer.hasRemaining()) {
+                position += fileChannel.write(batchBuffer, position);
+            }
+        } catch (final IOException e) {
+            // the position hasn't moved, so the next batch overwrites whatever part of this one landed
+            logger.error("Error writing a batch of {} records at offset {}", batch.size(), batchStartOffset, e);
+            throw e;
+        }
+
+        // positional writes leave the channel position alone; move it past the batch
+        // so the next batch and the rollover check see the new end of the file
+        fileChannel.position(position);
+        return encoder.results();
+    }
+
+    @Override
+    public void delete(final long offset, final FileChannel writeFileChannel) {
+    }
+
+    @Override
+    public void flush(final FileChannel writeFileChannel) throws IOException {
+        // file contents and size only; other metadata such as mtime isn't needed to read records back
+        writeFileChannel.force(false);
+    }
 }
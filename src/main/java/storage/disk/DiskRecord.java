@@ -1,39 +1,209 @@
 package storage.disk;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
 
-public record DiskRecord(long timestamp, String key, String value, long offset) {
+/**
+ * A decoded record. {@code valueOffset} is where its value bytes start and {@code offset} is
+ * where the next record starts.
+ * <p>
+ * Records are written in format v2: a {@link #FORMAT_V2} marker byte, the CRC32C (4) of everything
+ * after it, timestamp (8), varint key length, varint value length, key bytes and value bytes.
+ * Legacy records - timestamp (8), key length (4), value length (4), key, value and a 2-byte
+ * separator - are still read. A legacy record starts with the top byte of its timestamp, which is
+ * always zero, so the two formats can be told apart record by record, even within one segment.
+ * <p>
+ * Segments are preallocated, so written records are followed by zeros; a header that is all zero
+ * marks the end of the data. A sealed segment ends with an {@link #END_OF_SEGMENT} byte and the
+ * offset that marker sits at, and is trimmed right after it.
+ */
+public record DiskRecord(long timestamp, String key, String value, long valueOffset, long offset) {
+    static final int HEADER_SIZE = Long.BYTES + 2 * Integer.BYTES;
+    static final byte FORMAT_V2 = (byte) 0xC2;
+    static final int V2_CHECKSUMMED_FROM = 1 + Integer.BYTES;
+    static final byte END_OF_SEGMENT = (byte) 0xC5;
+    public static final int END_MARKER_SIZE = 1 + Long.BYTES;
+    private static final int MAX_VARINT_SIZE = 5;
+    static final int MAX_HEADER_SIZE = V2_CHECKSUMMED_FROM + Long.BYTES + 2 * MAX_VARINT_SIZE;
+    // most records fit, so a read usually takes a single syscall
+    private static final int READ_AHEAD = 2048;
+
+    @FunctionalInterface
+    private interface Reader {
+        void readFully(ByteBuffer buffer, long position) throws IOException;
+    }
 
     public static DiskRecord readFrom(final FileChannel channel, final long offset) throws IOException {
         if (offset > channel.size()) {
             return null;
         }
 
-        channel.position(offset);
-        // reading the fixed header
-        final ByteBuffer header = ByteBuffer.allocate(Long.BYTES + 2 * Integer.BYTES);
-        channel.read(header);
+        return decode((buffer, position) -> {
+            channel.position(position);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Unexpected end of data file at offset " + channel.position());
+                }
+            }
+        }, channel.size(), offset);
+    }
+
+    /**
+     * Same as {@link #readFrom} but uses positional reads, so the channel's position is never
+     * touched and any number of threads can read from the same channel at once.
+     */
+    public static DiskRecord readAt(final FileChannel channel, final long offset) throws IOException {
+        if (offset > channel.size()) {
+            return null;
+        }
+
+        return decode((buffer, position) -> readFully(channel, buffer, position), channel.size(), offset);
+    }
+
+    // null at the end of the segment's data
+    private static DiskRecord decode(final Reader reader, final long fileSize, final long offset) throws IOException {
+        final int prefixLength = (int) Math.min(READ_AHEAD, fileSize - offset);
+        ByteBuffer buffer = ByteBuffer.allocate(prefixLength);
+        reader.readFully(buffer, offset);
+        buffer.flip();
+
+        try {
+            if (buffer.get(0) == END_OF_SEGMENT || buffer.getLong(0) == 0) {
+                return null;
+            }
+
+            final boolean v2 = buffer.get(0) == FORMAT_V2;
+            final long timestamp;
+            final int keyLength;
+            final int valueLength;
+
+            if (v2) {
+                buffer.position(V2_CHECKSUMMED_FROM);
+                timestamp = buffer.getLong();
+                keyLength = getVarint(buffer);
+                valueLength = getVarint(buffer);
+            } else {
+                timestamp = buffer.getLong();
+                keyLength = buffer.getInt();
+                valueLength = buffer.getInt();
+            }
+
+            if (keyLength < 0 || valueLength < 0) {
+                throw new IOException("Corrupted record lengths at offset " + offset);
+            }
+
+            final int dataStart = buffer.position();
+            final int size = dataStart + keyLength + valueLength + (v2 ? 0 : 2);
+            if (size > prefixLength) {
+                final ByteBuffer full = ByteBuffer.allocate(size);
+                full.put(buffer.array(), 0, prefixLength);
+                reader.readFully(full, offset + prefixLength);
+                buffer = full;
+            }
+
+            if (v2 && checksum(buffer, 0, size) != buffer.getInt(1)) {
+                throw new IOException("Checksum mismatch in record at offset " + offset);
+            }
+
+            final String key = new String(buffer.array(), dataStart, keyLength, StandardCharsets.UTF_8);
+            final String value = new String(buffer.array(), dataStart + keyLength, valueLength, StandardCharsets.UTF_8);
+            return new DiskRecord(timestamp, key, value, offset + dataStart + keyLength, offset + size);
+        } catch (final BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new EOFException("Truncated record at offset " + offset);
+        }
+    }
+
+    /**
+     * The marker that ends a sealed segment whose records end at {@code offset}.
+     */
+    public static ByteBuffer endMarker(final long offset) {
+        return ByteBuffer.allocate(END_MARKER_SIZE).put(END_OF_SEGMENT).putLong(offset).flip();
+    }
+
+    // whether the END_MARKER_SIZE bytes at the buffer's position are the marker for file offset {@code offset}
+    static boolean isEndMarker(final ByteBuffer buffer, final long offset) {
+        final int position = buffer.position();
+        return buffer.get(position) == END_OF_SEGMENT && buffer.getLong(position + 1) == offset;
+    }
+
+    public static int encodedSize(final int keyLength, final int valueLength) {
+        return V2_CHECKSUMMED_FROM + Long.BYTES + varintSize(keyLength) + varintSize(valueLength) + keyLength + valueLength;
+    }
+
+    // where the value starts within an encoded record; v2 records end with their value
+    public static int valuePosition(final int keyLength, final int valueLength) {
+        return encodedSize(keyLength, valueLength) - valueLength;
+    }
+
+    /**
+     * Appends one record to {@code buffer}, which must have {@link #encodedSize} bytes remaining.
+     */
+    public static void put(final ByteBuffer buffer, final long timestamp, final byte[] keyBytes, final byte[] valueBytes) {
+        final int start = buffer.position();
+        buffer.put(FORMAT_V2);
+        buffer.putInt(0); // checksum, filled in below
+        buffer.putLong(timestamp);
+        putVarint(buffer, keyBytes.length);
+        putVarint(buffer, valueBytes.length);
+        buffer.put(keyBytes);
+        buffer.put(valueBytes);
+
+        buffer.putInt(start + 1, checksum(buffer, start, buffer.position() - start));
+    }
 
-        // switch to read mode
-        header.flip();
+    // CRC32C of a v2 record's bytes after the checksum field
+    static int checksum(final ByteBuffer buffer, final int recordStart, final int size) {
+        final CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate().limit(recordStart + size).position(recordStart + V2_CHECKSUMMED_FROM));
+        return (int) crc.getValue();
+    }
 
-        long timestamp = header.getLong();
-        int keyLength = header.getInt();
-        int valueLength = header.getInt();
+    static int varintSize(final int value) {
+        if (value < 1 << 7) {
+            return 1;
+        }
+        if (value < 1 << 14) {
+            return 2;
+        }
+        if (value < 1 << 21) {
+            return 3;
+        }
+        return value < 1 << 28 ? 4 : 5;
+    }
 
-        int recordSize = header.capacity() + keyLength + valueLength;
-        final ByteBuffer data = ByteBuffer.allocate(keyLength + valueLength);
-        channel.read(data);
-        data.flip();
+    static void putVarint(final ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
 
-        byte[] keyBytes = new byte[keyLength];
-        byte[] valueBytes = new byte[valueLength];
+    // returns -1 for an encoding that runs past five bytes or out of int range
+    static int getVarint(final ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT_SIZE; shift += 7) {
+            final byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
 
-        data.get(keyBytes);
-        data.get(valueBytes);
+        return -1;
+    }
 
-        return new DiskRecord(timestamp, new String(keyBytes), new String(valueBytes), offset + recordSize);
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        final int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                throw new EOFException("Unexpected end of data file at offset " + (position + buffer.position() - start));
+            }
+        }
     }
 }
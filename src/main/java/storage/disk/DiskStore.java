@@ -6,12 +6,14 @@ import storage.AsyncWriteRequest;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.util.List;
-import java.util.concurrent.CompletableFuture;
 
 public interface DiskStore {
-    String read(long offset, FileChannel readFileChannel) throws IOException;
-    List<WriteResult> write(List<AsyncWriteRequest> batch, FileChannel writeFileChannel);
+    // reads exactly the value bytes, as located by the keydir
+    String read(long valueOffset, int valueLength, FileChannel readFileChannel) throws IOException;
+    // the results are reused by the next write, so they have to be consumed before then; after a
+    // failed write the channel is left where the batch started, so writing can go on from there
+    WriteResults write(List<AsyncWriteRequest> batch, FileChannel writeFileChannel) throws IOException;
     void delete(long offset, FileChannel writeFileChannel);
-    void flush();
+    void flush(FileChannel writeFileChannel) throws IOException;
 }
 
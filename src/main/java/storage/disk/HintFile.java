@@ -0,0 +1,164 @@
+package storage.disk;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A compact index of a sealed segment: one entry per record with its key, offset, size, value
+ * location and timestamp, but no value. Rebuilding the keydir from hints avoids reading every
+ * value at startup.
+ * <p>
+ * Layout: entries of timestamp (8), flags (1), key length (4), offset (8), size (4), value
+ * position within the record (4), value length (4) and key bytes, followed by a trailer of the
+ * entry bytes' CRC32 (4) and {@link #MAGIC} (4). A hint with a bad trailer, including one written
+ * in an older layout, is ignored and its segment is scanned instead.
+ */
+public final class HintFile {
+    public static final String HINT_FILE_SUFFIX = ".hint";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x4D484E32; // "MHN2"
+    private static final int TRAILER_SIZE = 2 * Integer.BYTES;
+    private static final byte FLAG_TOMBSTONE = 1;
+
+    public record Entry(String key, long offset, int size, long valueOffset, int valueLength, long timestamp, boolean tombstone) {}
+
+    private HintFile() {
+    }
+
+    // 123.data -> 123.hint
+    public static Path hintPathFor(final Path segment) {
+        final String name = segment.getFileName().toString();
+        final int extension = name.lastIndexOf('.');
+        return segment.resolveSibling((extension < 0 ? name : name.substring(0, extension)) + HINT_FILE_SUFFIX);
+    }
+
+    /**
+     * Writes the hint for a sealed segment next to it. The hint is written to a temporary file,
+     * synced and then renamed, so a crash never leaves a partial hint behind.
+     */
+    public static void write(final Path segment) throws IOException {
+        final Path hint = hintPathFor(segment);
+        final Path temp = hint.resolveSibling(hint.getFileName() + TEMP_SUFFIX);
+        final CRC32 crc = new CRC32();
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024), crc);
+            final DataOutputStream out = new DataOutputStream(checked);
+
+            SegmentScanner.scan(segment, entry -> {
+                try {
+                    final byte[] keyBytes = entry.key().getBytes(StandardCharsets.UTF_8);
+                    out.writeLong(entry.timestamp());
+                    out.writeByte(entry.tombstone() ? FLAG_TOMBSTONE : 0);
+                    out.writeInt(keyBytes.length);
+                    out.writeLong(entry.offset());
+                    out.writeInt(entry.size());
+                    out.writeInt((int) (entry.valueOffset() - entry.offset()));
+                    out.writeInt(entry.valueLength());
+                    out.write(keyBytes);
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            out.flush();
+            final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            trailer.putInt((int) crc.getValue());
+            trailer.putInt(MAGIC);
+            trailer.flip();
+            while (trailer.hasRemaining()) {
+                channel.write(trailer);
+            }
+
+            channel.force(true);
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        Files.move(temp, hint, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Whether the segment has a hint in the current layout. Only the trailer is checked.
+     */
+    public static boolean isCurrent(final Path segment) throws IOException {
+        final Path hint = hintPathFor(segment);
+        if (!Files.isRegularFile(hint)) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(hint, StandardOpenOption.READ)) {
+            if (channel.size() < TRAILER_SIZE) {
+                return false;
+            }
+
+            final ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            while (magic.hasRemaining()) {
+                if (channel.read(magic, channel.size() - Integer.BYTES + magic.position()) < 0) {
+                    return false;
+                }
+            }
+            return magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Feeds every entry of the segment's hint to {@code consumer}. Returns false, without calling the
+     * consumer, if there is no hint or it fails its checksum.
+     */
+    public static boolean read(final Path segment, final Consumer<Entry> consumer) throws IOException {
+        final Path hint = hintPathFor(segment);
+        if (!Files.isRegularFile(hint)) {
+            return false;
+        }
+
+        final byte[] bytes;
+        try (InputStream in = Files.newInputStream(hint)) {
+            bytes = in.readAllBytes();
+        }
+
+        if (bytes.length < TRAILER_SIZE) {
+            return false;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final int entriesLength = bytes.length - TRAILER_SIZE;
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, entriesLength);
+
+        if (buffer.getInt(entriesLength) != (int) crc.getValue() || buffer.getInt(entriesLength + Integer.BYTES) != MAGIC) {
+            return false;
+        }
+
+        while (buffer.position() < entriesLength) {
+            final long timestamp = buffer.getLong();
+            final boolean tombstone = buffer.get() == FLAG_TOMBSTONE;
+            final int keyLength = buffer.getInt();
+            final long offset = buffer.getLong();
+            final int size = buffer.getInt();
+            final int valuePosition = buffer.getInt();
+            final int valueLength = buffer.getInt();
+            final String key = new String(bytes, buffer.position(), keyLength, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + keyLength);
+
+            consumer.accept(new Entry(key, offset, size, offset + valuePosition, valueLength, timestamp, tombstone));
+        }
+
+        return true;
+    }
+}
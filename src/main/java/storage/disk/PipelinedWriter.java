@@ -0,0 +1,189 @@
+package storage.disk;
+
+import storage.AsyncWriteRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Two-stage batch writer. The write thread encodes the next batch while a dedicated I/O thread
+ * writes, and optionally syncs, the previous one. Batches are encoded into two buffers in turn,
+ * so the write thread has to wait for a batch before it encodes the batch after next.
+ * <p>
+ * Once stopped, every batch handed off but not yet acknowledged has its futures failed, so no
+ * caller waits for a write that will never be applied.
+ */
+public final class PipelinedWriter {
+    private final BatchEncoder[] encoders = {new BatchEncoder(), new BatchEncoder()};
+    private final ExecutorService ioThread;
+    // handed to the I/O thread and maybe not acknowledged yet; batches are acknowledged in order,
+    // so no more than the last two or three are ever kept
+    private final Queue<Batch> pending = new ConcurrentLinkedQueue<>();
+    private volatile boolean stopped;
+    private int nextEncoder;
+
+    public PipelinedWriter(final String threadName) {
+        ioThread = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Encodes the batch for writing at {@code startOffset}, into the buffer that isn't in flight.
+     */
+    public Batch encode(final List<AsyncWriteRequest> requests, final long startOffset) {
+        final BatchEncoder encoder = encoders[nextEncoder];
+        nextEncoder ^= 1;
+
+        final ByteBuffer buffer = encoder.encode(requests, startOffset);
+        return new Batch(requests, encoder.results(), buffer, startOffset);
+    }
+
+    // hands the batch to the I/O thread; batches land in the order they are written
+    public void write(final Batch batch, final FileChannel channel, final boolean sync) {
+        while (pending.peek() != null && pending.peek().isAcknowledged()) {
+            pending.poll();
+        }
+        pending.add(batch);
+
+        try {
+            batch.future = ioThread.submit(() -> {
+                batch.writeTo(channel, sync);
+                return null;
+            });
+        } catch (final RejectedExecutionException e) {
+            batch.future = CompletableFuture.failedFuture(stoppedException());
+        }
+
+        // stop() may have run before the batch was added
+        if (stopped) {
+            failPending();
+        }
+    }
+
+    /**
+     * Lets the I/O thread finish what it was handed, since an interrupted write would close the
+     * channel, and fails the futures of every batch that hasn't been acknowledged.
+     */
+    public void stop() {
+        stopped = true;
+        ioThread.shutdown();
+        failPending();
+    }
+
+    private void failPending() {
+        Batch batch;
+        while ((batch = pending.poll()) != null) {
+            batch.fail(stoppedException());
+        }
+    }
+
+    private static IOException stoppedException() {
+        return new IOException("Writer stopped before the write was acknowledged");
+    }
+
+    public static final class Batch {
+        private final List<AsyncWriteRequest> requests;
+        // the request list is reused for a later batch, so stop() goes by these instead
+        private final CompletableFuture<?>[] futures;
+        private final WriteResults results;
+        private final ByteBuffer buffer;
+        private final long startOffset;
+        private final long startNanos = System.nanoTime();
+        private Future<?> future;
+        // set by the I/O thread, read once the future is done
+        private boolean written;
+        private long syncNanos = -1;
+
+        private Batch(final List<AsyncWriteRequest> requests, final WriteResults results, final ByteBuffer buffer,
+                      final long startOffset) {
+            this.requests = requests;
+            this.futures = new CompletableFuture<?>[requests.size()];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = requests.get(i).future();
+            }
+            this.results = results;
+            this.buffer = buffer;
+            this.startOffset = startOffset;
+        }
+
+        public List<AsyncWriteRequest> requests() {
+            return requests;
+        }
+
+        public WriteResults results() {
+            return results;
+        }
+
+        public long endOffset() {
+            return startOffset + buffer.limit();
+        }
+
+        // when the batch finished encoding, just after it was drained from the queue
+        public long startNanos() {
+            return startNanos;
+        }
+
+        /**
+         * Waits until the batch is written, and synced if that was asked for. When this throws,
+         * {@link #written()} tells whether only the sync failed.
+         */
+        public void await() throws IOException, InterruptedException {
+            try {
+                future.get();
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof IOException io) {
+                    throw io;
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+
+        public boolean written() {
+            return written;
+        }
+
+        // the write thread completes a batch's futures in order, failed or not
+        private boolean isAcknowledged() {
+            return futures.length == 0 || futures[futures.length - 1].isDone();
+        }
+
+        private void fail(final Throwable e) {
+            for (final CompletableFuture<?> future : futures) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        // how long the sync took, or -1 if the batch wasn't synced
+        public long syncNanos() {
+            return syncNanos;
+        }
+
+        private void writeTo(final FileChannel channel, final boolean sync) throws IOException {
+            long position = startOffset;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            written = true;
+
+            if (sync) {
+                final long start = System.nanoTime();
+                // file contents and size only, as in DiskStore.flush
+                channel.force(false);
+                syncNanos = System.nanoTime() - start;
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package storage.disk;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Direct buffers for value reads, shared by every reader thread. Reading into a direct buffer
+ * skips the JDK's copy through a temporary one, and pooling them leaves the decoded String as
+ * a GET's only allocation. Values larger than {@link #MAX_POOLED_SIZE} get a one-off buffer.
+ * <p>
+ * The pool is a fixed array of slots, two per core, so taking and returning a buffer allocates
+ * nothing and the pool never holds more buffers than that. Once every slot is full, a returned
+ * buffer is dropped; when they are all empty, a reader gets a new buffer.
+ */
+final class ReadBufferPool {
+    private static final int MIN_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_SIZE = 1024 * 1024;
+
+    private final AtomicReferenceArray<ReadBuffer> slots =
+            new AtomicReferenceArray<>(2 * Runtime.getRuntime().availableProcessors());
+
+    static final class ReadBuffer {
+        private final ByteBuffer direct;
+        // decoding needs a heap array; it's kept with its buffer so it's reused too
+        private final byte[] bytes;
+
+        private ReadBuffer(final int capacity) {
+            this.direct = ByteBuffer.allocateDirect(capacity);
+            this.bytes = new byte[capacity];
+        }
+
+        ByteBuffer direct() {
+            return direct;
+        }
+
+        String decode() {
+            direct.flip();
+            final int length = direct.remaining();
+            direct.get(bytes, 0, length);
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Returns a buffer whose {@link ReadBuffer#direct()} has exactly {@code length} bytes remaining.
+     */
+    ReadBuffer acquire(final int length) {
+        ReadBuffer buffer = take();
+        if (buffer == null || buffer.direct.capacity() < length) {
+            // a pooled buffer that is too small is dropped; the larger one takes its place
+            buffer = new ReadBuffer(length > MAX_POOLED_SIZE ? length : Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit(length - 1) << 1));
+        }
+
+        buffer.direct.clear().limit(length);
+        return buffer;
+    }
+
+    void release(final ReadBuffer buffer) {
+        if (buffer.direct.capacity() > MAX_POOLED_SIZE) {
+            return;
+        }
+
+        final int start = firstSlot();
+        for (int i = 0; i < slots.length(); i++) {
+            final int slot = (start + i) % slots.length();
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, buffer)) {
+                return;
+            }
+        }
+    }
+
+    private ReadBuffer take() {
+        final int start = firstSlot();
+        for (int i = 0; i < slots.length(); i++) {
+            final int slot = (start + i) % slots.length();
+            final ReadBuffer buffer = slots.get(slot);
+            if (buffer != null && slots.compareAndSet(slot, buffer, null)) {
+                return buffer;
+            }
+        }
+
+        return null;
+    }
+
+    // threads start their search at different slots, so they mostly don't contend for the same one
+    private int firstSlot() {
+        return (int) (Thread.currentThread().threadId() % slots.length());
+    }
+}
@@ -0,0 +1,197 @@
+package storage.disk;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+import static legacy.engine.LogWriter.TOMBSTONE_VALUE;
+
+/**
+ * Walks the records of a segment and reports each one's key, offset, size, value location and
+ * timestamp without decoding its value. Both record formats are understood (see {@link DiskRecord}).
+ * <p>
+ * A scan stops at the first record that is cut short by the end of the file, has impossible
+ * lengths or fails its checksum, and returns that record's offset: everything before it is
+ * known good. After a crash this is where the active segment gets truncated. It also stops where
+ * the data ends in preallocated space, and after a sealed segment's end marker, which counts as
+ * part of the valid prefix.
+ */
+public final class SegmentScanner {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final byte[] TOMBSTONE_BYTES = TOMBSTONE_VALUE.getBytes(StandardCharsets.UTF_8);
+    // returned by parse for a segment's end marker
+    private static final int END = -2;
+
+    private SegmentScanner() {
+    }
+
+    /**
+     * Scans the segment through a buffer that is refilled with positional reads.
+     *
+     * @return the length of the segment's valid prefix
+     */
+    public static long scan(final Path segment, final Consumer<HintFile.Entry> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            final long fileEnd = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(fileEnd, 1)));
+            buffer.flip();
+            // file offset of buffer.position()
+            long offset = 0;
+
+            while (offset < fileEnd) {
+                final long available = fileEnd - offset;
+                final int size = buffer.remaining() >= Math.min(DiskRecord.MAX_HEADER_SIZE, available)
+                        ? parse(buffer, offset, available, consumer)
+                        : 0;
+
+                if (size == END) {
+                    return offset + DiskRecord.END_MARKER_SIZE;
+                }
+
+                if (size < 0) {
+                    return offset;
+                }
+
+                if (size == 0) {
+                    // the record continues past the buffer: keep what we have and read more after it
+                    buffer.compact();
+                    if (!buffer.hasRemaining()) {
+                        buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+                    }
+                    final int read = channel.read(buffer, offset + buffer.position());
+                    buffer.flip();
+                    if (read < 0) {
+                        return offset;
+                    }
+                    continue;
+                }
+
+                offset += size;
+            }
+
+            return offset;
+        }
+    }
+
+    /**
+     * Same as {@link #scan} but parses the segment straight out of a read-only memory mapping,
+     * which avoids a read syscall and a buffer copy per chunk.
+     *
+     * @return the length of the segment's valid prefix
+     */
+    public static long scanMapped(final Path segment, final Consumer<HintFile.Entry> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            final long fileSize = channel.size();
+            if (fileSize > Integer.MAX_VALUE) {
+                // a single mapping can't address more than 2 GB
+                return scan(segment, consumer);
+            }
+
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            while (buffer.hasRemaining()) {
+                final int offset = buffer.position();
+                final int size = parse(buffer, offset, buffer.remaining(), consumer);
+                if (size == END) {
+                    return offset + DiskRecord.END_MARKER_SIZE;
+                }
+
+                if (size <= 0) {
+                    return offset;
+                }
+            }
+
+            return fileSize;
+        }
+    }
+
+    /**
+     * Parses the record at the buffer's position, which is file offset {@code offset} with
+     * {@code available} bytes left in the file, and advances past it.
+     *
+     * @return the record's size, 0 if the buffer ends before the record does, {@link #END} at
+     * the segment's end marker, or -1 if the record is torn or corrupt or the data has ended
+     */
+    private static int parse(final ByteBuffer buffer, final long offset, final long available,
+                             final Consumer<HintFile.Entry> consumer) {
+        final int start = buffer.position();
+        try {
+            if (buffer.get(start) == DiskRecord.END_OF_SEGMENT) {
+                if (available < DiskRecord.END_MARKER_SIZE) {
+                    return -1;
+                }
+                if (buffer.limit() - start < DiskRecord.END_MARKER_SIZE) {
+                    return 0;
+                }
+                return DiskRecord.isEndMarker(buffer, offset) ? END : -1;
+            }
+
+            final boolean v2 = buffer.get(start) == DiskRecord.FORMAT_V2;
+            final long timestamp;
+            final int keyLength;
+            final int valueLength;
+
+            if (v2) {
+                buffer.position(start + DiskRecord.V2_CHECKSUMMED_FROM);
+                timestamp = buffer.getLong();
+                keyLength = DiskRecord.getVarint(buffer);
+                valueLength = DiskRecord.getVarint(buffer);
+            } else {
+                timestamp = buffer.getLong();
+                keyLength = buffer.getInt();
+                valueLength = buffer.getInt();
+                if (timestamp == 0) {
+                    // legacy records always have a timestamp; this is unused preallocated space
+                    return -1;
+                }
+            }
+
+            final int dataStart = buffer.position();
+            final long size = dataStart - start + (long) keyLength + valueLength + (v2 ? 0 : 2);
+            if (keyLength < 0 || valueLength < 0 || size > available) {
+                return -1;
+            }
+
+            if (size > buffer.limit() - start) {
+                buffer.position(start);
+                return 0;
+            }
+
+            if (v2 && DiskRecord.checksum(buffer, start, (int) size) != buffer.getInt(start + 1)) {
+                return -1;
+            }
+
+            final String key = new String(keyBytes(buffer, dataStart, keyLength), StandardCharsets.UTF_8);
+            final boolean tombstone = valueLength == TOMBSTONE_BYTES.length && isTombstone(buffer, dataStart + keyLength);
+            buffer.position(start + (int) size);
+
+            consumer.accept(new HintFile.Entry(key, offset, (int) size, offset + dataStart - start + keyLength, valueLength,
+                    timestamp, tombstone));
+            return (int) size;
+        } catch (final BufferUnderflowException | IndexOutOfBoundsException e) {
+            // the header itself runs past the end of the file
+            buffer.position(start);
+            return available > buffer.limit() - start ? 0 : -1;
+        }
+    }
+
+    private static byte[] keyBytes(final ByteBuffer buffer, final int position, final int length) {
+        final byte[] keyBytes = new byte[length];
+        buffer.get(position, keyBytes);
+        return keyBytes;
+    }
+
+    private static boolean isTombstone(final ByteBuffer buffer, final int position) {
+        for (int i = 0; i < TOMBSTONE_BYTES.length; i++) {
+            if (buffer.get(position + i) != TOMBSTONE_BYTES[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -1,86 +1,63 @@
 package storage.disk;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import storage.AsyncWriteRequest;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Reads by seeking the shared channel, so it is only safe when a single thread reads each file.
+ * Use {@link ConcurrentDiskStore} when reads are served from many threads.
+ */
 public class SerialDiskStore implements DiskStore {
+    private static final Logger logger = LoggerFactory.getLogger(SerialDiskStore.class);
+    private final ReadBufferPool readBuffers = new ReadBufferPool();
+    private final BatchEncoder encoder = new BatchEncoder();
 
     @Override
-    public String read(long offset, final FileChannel readFileChannel) {
+    public String read(final long valueOffset, final int valueLength, final FileChannel readFileChannel) {
+        final ReadBufferPool.ReadBuffer buffer = readBuffers.acquire(valueLength);
         try {
-            final DiskRecord record = DiskRecord.readFrom(readFileChannel, offset);
-
-            if (record == null) {
-                throw new RuntimeException("Data file size is less than the provided offset. Data is possibly corrupted.");
+            readFileChannel.position(valueOffset);
+            final ByteBuffer direct = buffer.direct();
+            while (direct.hasRemaining()) {
+                if (readFileChannel.read(direct) < 0) {
+                    throw new RuntimeException("Data file ends before the value at offset " + valueOffset + ". Data is possibly corrupted.");
+                }
             }
 
-            return record.value();
+            return buffer.decode();
         } catch (final IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            readBuffers.release(buffer);
         }
     }
 
     @Override
-    public List<WriteResult> write(List<AsyncWriteRequest> batch, FileChannel fileChannel) {
+    public WriteResults write(List<AsyncWriteRequest> batch, FileChannel fileChannel) throws IOException {
         if (batch == null || batch.isEmpty()) {
-            return new ArrayList<>();
-        }
-
-        int totalSize = 0;
-        List<byte[]> keyBytesList = new ArrayList<>(batch.size());
-        List<byte[]> valueBytesList = new ArrayList<>(batch.size());
-
-        // we go through the list once to calculate the total size of the batch
-        for (AsyncWriteRequest request: batch) {
-            byte[] keyBytes = request.key().getBytes(StandardCharsets.UTF_8);
-            byte[] valueBytes = request.value().getBytes(StandardCharsets.UTF_8);
-            keyBytesList.add(keyBytes);
-            valueBytesList.add(valueBytes);
-            totalSize += Long.BYTES + Integer.BYTES + Integer.BYTES + keyBytes.length + valueBytes.length + 2;
+            return WriteResults.EMPTY;
         }
 
-        final ByteBuffer batchBuffer = ByteBuffer.allocate(totalSize);
-        final List<WriteResult> writeResults = new ArrayList<>(batch.size());
-        long currentOffset = -1; // Will be set before the first write
-
+        final long batchStartOffset = fileChannel.position();
         try {
-            final long batchStartOffset = fileChannel.position();
-            currentOffset = batchStartOffset;
-
-            for (int i = 0; i < batch.size(); i++) {
-                byte[] keyBytes = keyBytesList.get(i);
-                byte[] valueBytes = valueBytesList.get(i);
-
-                long timestamp = System.currentTimeMillis();
-                writeResults.add(new WriteResult(currentOffset, timestamp));
-
-                batchBuffer.putLong(timestamp);
-                batchBuffer.putInt(keyBytes.length);
-                batchBuffer.putInt(valueBytes.length);
-                batchBuffer.put(keyBytes);
-                batchBuffer.put(valueBytes);
-                batchBuffer.putChar('\n'); // Use the same record separator
-
-                currentOffset += Long.BYTES + Integer.BYTES + Integer.BYTES + keyBytes.length + valueBytes.length + 2;
-            }
-
-            batchBuffer.flip();
+            final ByteBuffer batchBuffer = encoder.encode(batch, batchStartOffset);
             while(batchBuffer.hasRemaining()) {
                 fileChannel.write(batchBuffer);
             }
 
             // System.out.printf("Wrote batch of %d records to disk (%s)\n", batch.size(), activeFileName);
-            return writeResults;
+            return encoder.results();
         } catch (final IOException e) {
-            System.err.println("Error writing batch log: " + e.getMessage());
-            // Let the caller handle completing futures exceptionally
-            throw new RuntimeException(e);
+            logger.error("Error writing a batch of {} records at offset {}", batch.size(), batchStartOffset, e);
+            // back to the start of the batch, so the next batch overwrites whatever part of this one landed
+            fileChannel.position(batchStartOffset);
+            throw e;
         }
     }
 
@@ -89,6 +66,8 @@ public class SerialDiskStore implements DiskStore {
     }
 
     @Override
-    public void flush() {
+    public void flush(final FileChannel writeFileChannel) throws IOException {
+        // file contents and size only; other metadata such as mtime isn't needed to read records back
+        writeFileChannel.force(false);
     }
 }
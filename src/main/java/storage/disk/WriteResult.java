@@ -1,3 +0,0 @@
-package storage.disk;
-
-public record WriteResult(long offset, long timestamp) {}
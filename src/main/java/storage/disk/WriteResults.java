@@ -0,0 +1,55 @@
+package storage.disk;
+
+import java.util.Arrays;
+
+/**
+ * Where each record of the last written batch landed, kept in primitive arrays that are reused
+ * from batch to batch. Only valid until the disk store writes its next batch.
+ */
+public final class WriteResults {
+    static final WriteResults EMPTY = new WriteResults();
+
+    private long[] valueOffsets = new long[0];
+    private int[] valueLengths = new int[0];
+    private long[] timestamps = new long[0];
+    private int[] sizes = new int[0];
+    private int count;
+
+    void reset(final int capacity) {
+        if (valueOffsets.length < capacity) {
+            valueOffsets = Arrays.copyOf(valueOffsets, capacity);
+            valueLengths = Arrays.copyOf(valueLengths, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+        }
+        count = 0;
+    }
+
+    void add(final long valueOffset, final int valueLength, final long timestamp, final int size) {
+        valueOffsets[count] = valueOffset;
+        valueLengths[count] = valueLength;
+        timestamps[count] = timestamp;
+        sizes[count] = size;
+        count++;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public long valueOffset(final int index) {
+        return valueOffsets[index];
+    }
+
+    public int valueLength(final int index) {
+        return valueLengths[index];
+    }
+
+    public long timestamp(final int index) {
+        return timestamps[index];
+    }
+
+    public int size(final int index) {
+        return sizes[index];
+    }
+}
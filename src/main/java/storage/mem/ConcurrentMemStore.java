@@ -0,0 +1,200 @@
+package storage.mem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * A heap keydir that any number of threads can read while the write thread updates it, without
+ * readers taking a lock or retrying. Keys sit in an open-addressing (linear probing) table, with
+ * the key and its {@link MemRecord} in parallel arrays:
+ * <ul>
+ *   <li>a key's record is stored before the key itself, so a reader that finds the key also
+ *   finds a record for it;</li>
+ *   <li>records are immutable and replaced whole, so a read racing an update of the same key
+ *   returns either the old or the new location, never a mix of the two;</li>
+ *   <li>a removed key leaves a marker in its slot, which isn't reused until the table is rebuilt,
+ *   so a probe that reaches an empty slot can stop, and a reader that found a key finds its
+ *   record or, if it was just removed, nothing;</li>
+ *   <li>a resize builds the new table on the side, without the removed keys, and publishes it
+ *   with one volatile store; a reader still probing the old table sees it as it was just before
+ *   the resize.</li>
+ * </ul>
+ * Only the write thread may call {@link #write} and {@link #remove}.
+ */
+public class ConcurrentMemStore implements MemStore {
+    private static final Logger logger = LoggerFactory.getLogger(ConcurrentMemStore.class);
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final int MAX_CAPACITY = 1 << 30;
+    // compared by identity, so no real key can be mistaken for it
+    private static final String REMOVED = new String("");
+
+    // slot i keeps its key at 2i and its record at 2i + 1, so a lookup touches one cache line
+    private record Table(AtomicReferenceArray<Object> slots, int mask) {
+        Table(final int capacity) {
+            this(new AtomicReferenceArray<>(capacity * 2), capacity - 1);
+        }
+
+        String key(final int slot) {
+            return (String) slots.get(slot << 1);
+        }
+
+        MemRecord record(final int slot) {
+            return (MemRecord) slots.get((slot << 1) + 1);
+        }
+
+        // the record goes in first: a reader that sees the key has to find its record too
+        void put(final int slot, final String key, final MemRecord memRecord) {
+            slots.lazySet((slot << 1) + 1, memRecord);
+            slots.lazySet(slot << 1, key);
+        }
+
+        void setRecord(final int slot, final MemRecord memRecord) {
+            slots.lazySet((slot << 1) + 1, memRecord);
+        }
+
+        void remove(final int slot) {
+            slots.lazySet(slot << 1, REMOVED);
+            slots.lazySet((slot << 1) + 1, null);
+        }
+    }
+
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+    // write thread only
+    private int count;
+    // slots holding the marker of a removed key, until the next resize
+    private int removed;
+
+    public ConcurrentMemStore(final String dataPath, final boolean parallelLoad, final ToIntFunction<String> segmentIds) {
+        try {
+            logger.info("Loading data to concurrent memstore");
+            KeyDirLoader.load(dataPath, parallelLoad, segmentIds, this::put);
+            logger.info("KeyDir constructed finished, size: {}", count);
+        } catch (final IOException e) {
+            logger.error("Unable to load KeyDir", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public MemRecord write(final String key, final long valueOffset, final int valueLength, final int segmentId,
+                           final long timestamp, final int size, final int epoch) {
+        return put(key, new MemRecord(valueOffset, valueLength, segmentId, timestamp, size, epoch));
+    }
+
+    @Override
+    public Optional<MemRecord> read(final String key) {
+        final Table current = table;
+        final int slot = findSlot(current, key);
+        return slot < 0 ? Optional.empty() : Optional.ofNullable(current.record(slot));
+    }
+
+    @Override
+    public void remove(final String key) {
+        final Table current = table;
+        final int slot = findSlot(current, key);
+        if (slot < 0) {
+            return;
+        }
+
+        current.remove(slot);
+        count--;
+        removed++;
+        // a table left mostly markers is rebuilt smaller, so removing keys gives the memory back
+        if (removed > count && removed >= INITIAL_CAPACITY / 4) {
+            resize(current, capacityFor(count));
+        }
+    }
+
+    @Override
+    public void forEach(final BiConsumer<String, MemRecord> action) {
+        final Table current = table;
+        for (int slot = 0; slot <= current.mask(); slot++) {
+            final String key = current.key(slot);
+            final MemRecord memRecord = current.record(slot);
+            if (key != null && key != REMOVED && memRecord != null) {
+                action.accept(key, memRecord);
+            }
+        }
+    }
+
+    private MemRecord put(final String key, final MemRecord memRecord) {
+        Table current = table;
+        int slot = findSlot(current, key);
+        if (slot >= 0) {
+            final MemRecord previous = current.record(slot);
+            current.setRecord(slot, memRecord);
+            return previous;
+        }
+
+        if ((count + removed + 1L) * 4 > (current.mask() + 1L) * 3) {
+            current = resize(current, capacityFor(count + 1));
+            slot = findSlot(current, key);
+        }
+
+        current.put(-slot - 1, key, memRecord);
+        count++;
+        return null;
+    }
+
+    /**
+     * Returns the key's slot, or {@code -(empty slot) - 1} for the empty slot that ends its probe.
+     */
+    private static int findSlot(final Table current, final String key) {
+        final int hash = hash(key);
+        int slot = hash & current.mask();
+        while (true) {
+            final String candidate = current.key(slot);
+            if (candidate == null) {
+                return -slot - 1;
+            }
+
+            if (candidate != REMOVED && (candidate == key || candidate.hashCode() == key.hashCode() && candidate.equals(key))) {
+                return slot;
+            }
+
+            slot = (slot + 1) & current.mask();
+        }
+    }
+
+    // the smallest table that holds the keys at most half full
+    private static int capacityFor(final int keys) {
+        final long capacity = Math.max(INITIAL_CAPACITY, Long.highestOneBit(Math.max(1, keys) * 2L - 1) << 1);
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalStateException("Keydir is full at " + keys + " keys");
+        }
+
+        return (int) capacity;
+    }
+
+    private Table resize(final Table current, final int capacity) {
+        final Table resized = new Table(capacity);
+        for (int slot = 0; slot <= current.mask(); slot++) {
+            final String key = current.key(slot);
+            if (key == null || key == REMOVED) {
+                continue;
+            }
+
+            int target = hash(key) & resized.mask();
+            while (resized.key(target) != null) {
+                target = (target + 1) & resized.mask();
+            }
+            resized.put(target, key, current.record(slot));
+        }
+
+        table = resized;
+        removed = 0;
+        return resized;
+    }
+
+    private static int hash(final String key) {
+        // String.hashCode is weak in its low bits, which pick the slot
+        final int hash = key.hashCode() * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,208 @@
+package storage.mem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storage.disk.HintFile;
+import storage.disk.SegmentScanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+import static legacy.engine.LogWriter.FLUSH_TOMBSTONE_VALUE;
+import static storage.SingleThreadedStorageEngine.DATA_FILE_FILTER;
+import static storage.SingleThreadedStorageEngine.SEGMENT_NAME_ORDER;
+
+/**
+ * Rebuilds the keydir from the segments in a data directory. Each segment is reduced on its own to
+ * a partial map holding the newest entry per key, read from the segment's hint when it has a usable
+ * one and by scanning the segment otherwise. Partial maps are merged by recency, and tombstones and
+ * flush markers are only applied once everything is merged, so segments can be loaded in any order.
+ * A flush marker drops every entry that isn't newer than it, with the same tie-breaks as between
+ * two entries, so writes in the same millisecond as a FLUSH land on the right side of it.
+ * <p>
+ * In parallel mode the segments are memory-mapped and loaded on a fork-join pool, one task per
+ * segment, and the partial maps are merged pairwise as the tasks complete.
+ */
+final class KeyDirLoader {
+    private static final Logger logger = LoggerFactory.getLogger(KeyDirLoader.class);
+
+    // segment is the index in name order, so a higher index is a newer segment
+    private record Loaded(int segment, long valueOffset, int valueLength, int size, long timestamp, boolean tombstone) {}
+
+    // flush is the newest flush marker seen, or null
+    private record Partial(HashMap<String, Loaded> entries, Loaded flush) {}
+
+    private final String dataPath;
+    private final List<String> segments;
+
+    private KeyDirLoader(final String dataPath, final List<String> segments) {
+        this.dataPath = dataPath;
+        this.segments = segments;
+    }
+
+    /**
+     * Loads every segment under {@code dataPath} and hands each live key to {@code sink}, with
+     * its segment identified by the id {@code segmentIds} gives the segment's file name.
+     */
+    static void load(final String dataPath, final boolean parallel, final ToIntFunction<String> segmentIds,
+                     final BiConsumer<String, MemRecord> sink) throws IOException {
+        final long start = System.currentTimeMillis();
+        final File[] files = new File(dataPath).listFiles(DATA_FILE_FILTER);
+        final List<String> segments = files == null
+                ? List.of()
+                : Arrays.stream(files).map(File::getName).sorted(SEGMENT_NAME_ORDER).toList();
+
+        final int[] ids = segments.stream().mapToInt(segmentIds).toArray();
+        final KeyDirLoader loader = new KeyDirLoader(dataPath, segments);
+        final Partial merged = parallel ? loader.loadParallel() : loader.loadSerial();
+
+        // hand entries over one at a time so the intermediate map shrinks as the keydir grows
+        final Iterator<Map.Entry<String, Loaded>> iterator = merged.entries().entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Loaded> entry = iterator.next();
+            iterator.remove();
+
+            final Loaded loaded = entry.getValue();
+            if (loaded.tombstone() || merged.flush() != null && newer(loaded, merged.flush()) != loaded) {
+                continue;
+            }
+
+            // the engine starts over at epoch 0; anything flushed before was dropped above
+            sink.accept(entry.getKey(), new MemRecord(loaded.valueOffset(), loaded.valueLength(), ids[loaded.segment()], loaded.timestamp(), loaded.size(), 0));
+        }
+
+        logger.info("Loaded {} segments {} in {} ms", segments.size(), parallel ? "in parallel" : "serially",
+                System.currentTimeMillis() - start);
+    }
+
+    private Partial loadSerial() throws IOException {
+        Partial merged = new Partial(new HashMap<>(), null);
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            merged = merge(merged, loadSegment(i, false));
+        }
+
+        return merged;
+    }
+
+    private Partial loadParallel() throws IOException {
+        final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            return pool.invoke(new LoadTask(0, segments.size()));
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private Partial loadSegment(final int index, final boolean mapped) throws IOException {
+        final String filename = segments.get(index);
+        final Path segment = Path.of(dataPath + filename);
+        final HashMap<String, Loaded> entries = new HashMap<>();
+        final Loaded[] flush = {null};
+
+        final Consumer<HintFile.Entry> collector = entry -> {
+            final Loaded loaded = new Loaded(index, entry.valueOffset(), entry.valueLength(), entry.size(), entry.timestamp(), entry.tombstone());
+            if (entry.key().equals(FLUSH_TOMBSTONE_VALUE)) {
+                flush[0] = newerFlush(flush[0], loaded);
+                return;
+            }
+
+            entries.merge(entry.key(), loaded, KeyDirLoader::newer);
+        };
+
+        // the newest segment is the active one and has no hint; any other segment
+        // without a usable hint has its records scanned instead
+        final boolean active = index == segments.size() - 1;
+        if (!active && HintFile.read(segment, collector)) {
+            logger.info("Loaded data file {} from its hint", filename);
+        } else {
+            logger.info("Scanning {}data file: {}", mapped ? "mapped " : "", filename);
+            final long validLength = mapped
+                    ? SegmentScanner.scanMapped(segment, collector)
+                    : SegmentScanner.scan(segment, collector);
+            final long fileSize = Files.size(segment);
+            if (validLength < fileSize) {
+                logger.warn("Data file {} has an unreadable record at offset {}; ignoring its last {} bytes",
+                        filename, validLength, fileSize - validLength);
+            }
+        }
+
+        return new Partial(entries, flush[0]);
+    }
+
+    private static Partial merge(final Partial first, final Partial second) {
+        final boolean firstLarger = first.entries().size() >= second.entries().size();
+        final HashMap<String, Loaded> into = firstLarger ? first.entries() : second.entries();
+        final HashMap<String, Loaded> from = firstLarger ? second.entries() : first.entries();
+
+        from.forEach((key, loaded) -> into.merge(key, loaded, KeyDirLoader::newer));
+        return new Partial(into, newerFlush(first.flush(), second.flush()));
+    }
+
+    private static Loaded newerFlush(final Loaded a, final Loaded b) {
+        if (a == null || b == null) {
+            return a == null ? b : a;
+        }
+
+        return newer(a, b);
+    }
+
+    // timestamps are in milliseconds and often tie, so fall back to segment and then offset order
+    private static Loaded newer(final Loaded a, final Loaded b) {
+        if (a.timestamp() != b.timestamp()) {
+            return a.timestamp() > b.timestamp() ? a : b;
+        }
+
+        if (a.segment() != b.segment()) {
+            return a.segment() > b.segment() ? a : b;
+        }
+
+        return a.valueOffset() > b.valueOffset() ? a : b;
+    }
+
+    private class LoadTask extends RecursiveTask<Partial> {
+        private final int from;
+        private final int to;
+
+        LoadTask(final int from, final int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Partial compute() {
+            if (to - from == 0) {
+                return new Partial(new HashMap<>(), null);
+            }
+
+            if (to - from == 1) {
+                try {
+                    return loadSegment(from, true);
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            final int middle = (from + to) >>> 1;
+            final LoadTask left = new LoadTask(from, middle);
+            left.fork();
+            final Partial right = new LoadTask(middle, to).compute();
+
+            return merge(left.join(), right);
+        }
+    }
+}
@@ -1,3 +1,5 @@
 package storage.mem;
 
-public record MemRecord(long valueOffset, String filename, long timestamp) {}
+// epoch is the engine's flush generation when the record was written; records of older epochs were flushed,
+// and a deleted key's record is given an epoch that never matches
+public record MemRecord(long valueOffset, int valueLength, int segmentId, long timestamp, int size, int epoch) {}
@@ -1,8 +1,13 @@
 package storage.mem;
 
 import java.util.Optional;
+import java.util.function.BiConsumer;
 
 public interface MemStore {
-   void write(String key, long valueOffset, String filename, long timestamp);
+   // returns the record the key pointed to before this write, or null if it was absent
+   MemRecord write(String key, long valueOffset, int valueLength, int segmentId, long timestamp, int size, int epoch);
    Optional<MemRecord> read(String key);
+   // drops the key's entry, if it has one
+   void remove(String key);
+   void forEach(BiConsumer<String, MemRecord> action);
 }
@@ -0,0 +1,122 @@
+package storage.mem;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Growable off-heap memory made of fixed-size direct buffer pages, addressed by a long position.
+ * Nothing ever straddles a page: longs and ints are kept aligned by their callers, and
+ * {@link #allocate} moves an allocation to the next page rather than split it.
+ * <p>
+ * Only one thread may grow the buffer; pages are published through a volatile array, so readers
+ * that see a position also see the page behind it.
+ */
+final class OffHeapBuffer {
+    // big-endian like the buffers' own getLong and putLong, so both kinds of access see the same values
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final int pageBits;
+    private final int pageSize;
+    private final long pageMask;
+    private volatile ByteBuffer[] pages = new ByteBuffer[0];
+    private long allocated;
+
+    OffHeapBuffer(final int pageBits) {
+        this.pageBits = pageBits;
+        this.pageSize = 1 << pageBits;
+        this.pageMask = pageSize - 1;
+    }
+
+    /**
+     * Reserves {@code length} bytes starting at a multiple of {@code alignment} and returns their position.
+     */
+    long allocate(final int length, final int alignment) {
+        if (length > pageSize) {
+            throw new IllegalArgumentException("Allocation of " + length + " bytes exceeds the page size of " + pageSize);
+        }
+
+        long position = (allocated + alignment - 1) / alignment * alignment;
+        if ((position & pageMask) + length > pageSize) {
+            position = (position >>> pageBits) + 1 << pageBits;
+        }
+
+        ensureCapacity(position + length);
+        allocated = position + length;
+        return position;
+    }
+
+    void ensureCapacity(final long bytes) {
+        ByteBuffer[] current = pages;
+        if ((long) current.length << pageBits >= bytes) {
+            return;
+        }
+
+        final int pageCount = (int) ((bytes + pageMask) >>> pageBits);
+        current = Arrays.copyOf(current, pageCount);
+        for (int i = 0; i < pageCount; i++) {
+            if (current[i] == null) {
+                // direct buffers start zeroed, which the callers rely on
+                current[i] = ByteBuffer.allocateDirect(pageSize);
+            }
+        }
+        pages = current;
+    }
+
+    long capacity() {
+        return (long) pages.length << pageBits;
+    }
+
+    long getLong(final long position) {
+        return page(position).getLong(offset(position));
+    }
+
+    void putLong(final long position, final long value) {
+        page(position).putLong(offset(position), value);
+    }
+
+    /**
+     * Reads a long written by {@link #putLongRelease}, seeing everything written before it. The
+     * position has to be a multiple of 8.
+     */
+    long getLongAcquire(final long position) {
+        return (long) LONGS.getAcquire(page(position), offset(position));
+    }
+
+    // publishes the long after everything written before it; the position has to be a multiple of 8
+    void putLongRelease(final long position, final long value) {
+        LONGS.setRelease(page(position), offset(position), value);
+    }
+
+    int getInt(final long position) {
+        return page(position).getInt(offset(position));
+    }
+
+    void putInt(final long position, final int value) {
+        page(position).putInt(offset(position), value);
+    }
+
+    void get(final long position, final byte[] destination) {
+        page(position).get(offset(position), destination);
+    }
+
+    void put(final long position, final byte[] source) {
+        page(position).put(offset(position), source);
+    }
+
+    boolean contentEquals(final long position, final byte[] bytes) {
+        final ByteBuffer page = page(position);
+        final int offset = offset(position);
+        return page.slice(offset, bytes.length).equals(ByteBuffer.wrap(bytes));
+    }
+
+    private ByteBuffer page(final long position) {
+        return pages[(int) (position >>> pageBits)];
+    }
+
+    private int offset(final long position) {
+        return (int) (position & pageMask);
+    }
+}
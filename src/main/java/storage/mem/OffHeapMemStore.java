@@ -0,0 +1,300 @@
+package storage.mem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * A keydir that lives outside the Java heap, so its size doesn't drive GC pauses. Keys are
+ * found with an open-addressing (linear probing) table of longs, each slot holding the key's
+ * hash and an entry id. Entries are fixed 40-byte records and key bytes go in an append-only
+ * arena, both in off-heap pages:
+ * <pre>
+ *   slot:  hash (32 bits) | entry id + 1 (32 bits), 0 when empty, all ones when the key was removed
+ *   entry: key position (8) | value offset (8) | timestamp (8) | segment id (4) | record size (4) | value length (4) | epoch (4)
+ *   key:   length (4) | UTF-8 bytes
+ * </pre>
+ * A key costs about 60 bytes plus its own length. A removed key keeps its slot, entry and key
+ * bytes until the next resize, which copies only the keys still there into new pages.
+ * <p>
+ * Like {@link UnsafeMemStore} only the write thread may write. Reads don't lock: {@link #version}
+ * is a seqlock, odd while a write is under way, and a read that overlapped a write tries again, so
+ * it never sees half of an update.
+ */
+public class OffHeapMemStore implements MemStore {
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapMemStore.class);
+    private static final int PAGE_BITS = 22; // 4 MB
+    private static final int ENTRY_SIZE = 40;
+    // entries never straddle a page, so each page ends in a few unused bytes
+    private static final int ENTRIES_PER_PAGE = (1 << PAGE_BITS) / ENTRY_SIZE;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final int REMOVED_SLOT = -1;
+    // the key position of a removed entry, so forEach skips it
+    private static final long REMOVED_ENTRY = -1;
+
+    // replaced whole by a resize, so a reader always probes slots and entries that belong together
+    private record Table(OffHeapBuffer slots, int mask, OffHeapBuffer entries, OffHeapBuffer keys) {}
+
+    private volatile Table table = newTable(INITIAL_CAPACITY);
+    // write thread only: keys present, entries allocated in the table's pages, and slots left by removed keys
+    private long count;
+    private long entryCount;
+    private long removed;
+    // odd while the write thread changes the table or an entry, even otherwise
+    private volatile long version;
+
+    public OffHeapMemStore(final String dataPath, final boolean parallelLoad, final ToIntFunction<String> segmentIds) {
+        try {
+            logger.info("Loading data to off-heap memstore");
+            KeyDirLoader.load(dataPath, parallelLoad, segmentIds, (key, memRecord) ->
+                    write(key, memRecord.valueOffset(), memRecord.valueLength(), memRecord.segmentId(),
+                            memRecord.timestamp(), memRecord.size(), memRecord.epoch()));
+            logger.info("KeyDir constructed finished, size: {}, off-heap bytes: {}", count, getOffHeapBytes());
+        } catch (final IOException e) {
+            logger.error("Unable to load KeyDir", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public MemRecord write(final String key, final long valueOffset, final int valueLength, final int segmentId,
+                           final long timestamp, final int size, final int epoch) {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final int hash = hash(key);
+        Table current = table;
+        int slot = findSlot(current, hash, keyBytes);
+        final long slotValue = current.slots().getLong((long) slot * Long.BYTES);
+
+        if ((int) slotValue != 0) {
+            final long entry = entryPosition(slotValue);
+            final MemRecord previous = toRecord(current, entry);
+            beginWrite();
+            putLocation(current, entry, valueOffset, valueLength, segmentId, timestamp, size, epoch);
+            endWrite();
+            return previous;
+        }
+
+        if ((count + removed + 1) * 4 > (current.mask() + 1L) * 3) {
+            current = resize(current, capacityFor(count + 1));
+            slot = findSlot(current, hash, keyBytes);
+        }
+
+        final long keyPosition = current.keys().allocate(Integer.BYTES + keyBytes.length, Integer.BYTES);
+        current.keys().putInt(keyPosition, keyBytes.length);
+        current.keys().put(keyPosition + Integer.BYTES, keyBytes);
+
+        final long entryId = entryCount;
+        final long entry = positionOf(entryId);
+        current.entries().ensureCapacity(entry + ENTRY_SIZE);
+        current.entries().putLong(entry, keyPosition);
+        putLocation(current, entry, valueOffset, valueLength, segmentId, timestamp, size, epoch);
+
+        // the entry is unreachable until its slot is published, so only the slot needs the seqlock
+        beginWrite();
+        current.slots().putLongRelease((long) slot * Long.BYTES, (long) hash << 32 | (entryId + 1));
+        endWrite();
+        entryCount++;
+        count++;
+        return null;
+    }
+
+    @Override
+    public Optional<MemRecord> read(final String key) {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final int hash = hash(key);
+        while (true) {
+            final long before = version;
+            if ((before & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            final Table current = table;
+            final long slotValue = current.slots().getLongAcquire((long) findSlot(current, hash, keyBytes) * Long.BYTES);
+            final MemRecord record = (int) slotValue == 0 ? null : toRecord(current, entryPosition(slotValue));
+
+            // the reads above have to be done before version is checked again
+            VarHandle.loadLoadFence();
+            if (version == before) {
+                return Optional.ofNullable(record);
+            }
+        }
+    }
+
+    @Override
+    public void remove(final String key) {
+        final Table current = table;
+        final int slot = findSlot(current, hash(key), key.getBytes(StandardCharsets.UTF_8));
+        final long slotValue = current.slots().getLong((long) slot * Long.BYTES);
+        if ((int) slotValue == 0) {
+            return;
+        }
+
+        beginWrite();
+        current.slots().putLongRelease((long) slot * Long.BYTES, slotValue & 0xFFFFFFFF00000000L | REMOVED_SLOT & 0xFFFFFFFFL);
+        current.entries().putLong(entryPosition(slotValue), REMOVED_ENTRY);
+        endWrite();
+        count--;
+        removed++;
+        // a table left mostly removed keys is rebuilt smaller, so removing keys gives the memory back
+        if (removed > count && removed >= INITIAL_CAPACITY / 4) {
+            resize(current, capacityFor(count));
+        }
+    }
+
+    // the volatile store keeps earlier writes before it, the fence keeps the entry writes after it
+    private void beginWrite() {
+        version++;
+        VarHandle.storeStoreFence();
+    }
+
+    // the volatile store publishes the entry writes before it
+    private void endWrite() {
+        version++;
+    }
+
+    // write thread only
+    @Override
+    public void forEach(final BiConsumer<String, MemRecord> action) {
+        final Table current = table;
+        for (long entryId = 0; entryId < entryCount; entryId++) {
+            final long entry = positionOf(entryId);
+            final long keyPosition = current.entries().getLong(entry);
+            if (keyPosition != REMOVED_ENTRY) {
+                action.accept(readKey(current, keyPosition), toRecord(current, entry));
+            }
+        }
+    }
+
+    public long getOffHeapBytes() {
+        final Table current = table;
+        return current.entries().capacity() + current.keys().capacity() + current.slots().capacity();
+    }
+
+    private static int findSlot(final Table current, final int hash, final byte[] keyBytes) {
+        int slot = hash & current.mask();
+        while (true) {
+            final long slotValue = current.slots().getLongAcquire((long) slot * Long.BYTES);
+            if ((int) slotValue == 0) {
+                return slot;
+            }
+
+            if ((int) slotValue != REMOVED_SLOT && (int) (slotValue >>> 32) == hash
+                    && keyEquals(current, entryPosition(slotValue), keyBytes)) {
+                return slot;
+            }
+
+            slot = (slot + 1) & current.mask();
+        }
+    }
+
+    // the smallest table that holds the keys at most half full
+    private static int capacityFor(final long keys) {
+        final long capacity = Math.max(INITIAL_CAPACITY, Long.highestOneBit(Math.max(1, keys) * 2 - 1) << 1);
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalStateException("Off-heap keydir is full at " + keys + " keys");
+        }
+
+        return (int) capacity;
+    }
+
+    // copies the keys still there into new pages, dropping what removed keys left behind
+    private Table resize(final Table current, final int capacity) {
+        final Table resized = newTable(capacity);
+        long copied = 0;
+        for (long slot = 0; slot <= current.mask(); slot++) {
+            final long slotValue = current.slots().getLong(slot * Long.BYTES);
+            if ((int) slotValue == 0 || (int) slotValue == REMOVED_SLOT) {
+                continue;
+            }
+
+            final long from = entryPosition(slotValue);
+            final long fromKey = current.entries().getLong(from);
+            final byte[] keyBytes = new byte[current.keys().getInt(fromKey)];
+            current.keys().get(fromKey + Integer.BYTES, keyBytes);
+            final long keyPosition = resized.keys().allocate(Integer.BYTES + keyBytes.length, Integer.BYTES);
+            resized.keys().putInt(keyPosition, keyBytes.length);
+            resized.keys().put(keyPosition + Integer.BYTES, keyBytes);
+
+            final long to = positionOf(copied);
+            resized.entries().ensureCapacity(to + ENTRY_SIZE);
+            resized.entries().putLong(to, keyPosition);
+            final MemRecord memRecord = toRecord(current, from);
+            putLocation(resized, to, memRecord.valueOffset(), memRecord.valueLength(), memRecord.segmentId(),
+                    memRecord.timestamp(), memRecord.size(), memRecord.epoch());
+
+            // stored hashes mean no key has to be hashed again
+            int target = (int) (slotValue >>> 32) & resized.mask();
+            while ((int) resized.slots().getLong((long) target * Long.BYTES) != 0) {
+                target = (target + 1) & resized.mask();
+            }
+            resized.slots().putLong((long) target * Long.BYTES, slotValue & 0xFFFFFFFF00000000L | (copied + 1));
+            copied++;
+        }
+
+        // readers still on the old table retry once they see the version move
+        beginWrite();
+        table = resized;
+        endWrite();
+        entryCount = copied;
+        removed = 0;
+        return resized;
+    }
+
+    private static Table newTable(final int capacity) {
+        final long bytes = (long) capacity * Long.BYTES;
+        final OffHeapBuffer slots = new OffHeapBuffer(Math.min(PAGE_BITS, Long.numberOfTrailingZeros(bytes)));
+        slots.ensureCapacity(bytes);
+        return new Table(slots, capacity - 1, new OffHeapBuffer(PAGE_BITS), new OffHeapBuffer(PAGE_BITS));
+    }
+
+    private static void putLocation(final Table current, final long entry, final long valueOffset, final int valueLength,
+                                    final int segmentId, final long timestamp, final int size, final int epoch) {
+        final OffHeapBuffer entries = current.entries();
+        entries.putLong(entry + 8, valueOffset);
+        entries.putLong(entry + 16, timestamp);
+        entries.putInt(entry + 24, segmentId);
+        entries.putInt(entry + 28, size);
+        entries.putInt(entry + 32, valueLength);
+        entries.putInt(entry + 36, epoch);
+    }
+
+    private static MemRecord toRecord(final Table current, final long entry) {
+        final OffHeapBuffer entries = current.entries();
+        return new MemRecord(entries.getLong(entry + 8), entries.getInt(entry + 32), entries.getInt(entry + 24),
+                entries.getLong(entry + 16), entries.getInt(entry + 28), entries.getInt(entry + 36));
+    }
+
+    private static boolean keyEquals(final Table current, final long entry, final byte[] keyBytes) {
+        final long keyPosition = current.entries().getLong(entry);
+        return keyPosition != REMOVED_ENTRY && current.keys().getInt(keyPosition) == keyBytes.length
+                && current.keys().contentEquals(keyPosition + Integer.BYTES, keyBytes);
+    }
+
+    private static String readKey(final Table current, final long keyPosition) {
+        final byte[] keyBytes = new byte[current.keys().getInt(keyPosition)];
+        current.keys().get(keyPosition + Integer.BYTES, keyBytes);
+        return new String(keyBytes, StandardCharsets.UTF_8);
+    }
+
+    private static long entryPosition(final long slotValue) {
+        return positionOf((slotValue & 0xFFFFFFFFL) - 1);
+    }
+
+    private static long positionOf(final long entryId) {
+        return (entryId / ENTRIES_PER_PAGE << PAGE_BITS) + entryId % ENTRIES_PER_PAGE * ENTRY_SIZE;
+    }
+
+    private static int hash(final String key) {
+        // String.hashCode is weak in its low bits, which pick the slot
+        final int hash = key.hashCode() * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -1,18 +1,12 @@
-package storage.mem; import config.ConfigManager;
-import org.slf4j.Logger; import org.slf4j.LoggerFactory; import storage.disk.DiskRecord;
+package storage.mem;
 
-import java.io.File;
-import java.io.IOException; import java.nio.channels.FileChannel;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.util.Collections; import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger; import org.slf4j.LoggerFactory;
 
-import static legacy.engine.LogWriter.FLUSH_TOMBSTONE_VALUE;
-import static legacy.engine.LogWriter.TOMBSTONE_VALUE;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
 
 public class UnsafeMemStore implements MemStore {
     // not thread safe, but fast
@@ -20,10 +14,10 @@ public class UnsafeMemStore implements MemStore {
     private String DATA_PATH;
     final HashMap<String, MemRecord> keyDir = new HashMap<>();
 
-    public UnsafeMemStore() {
-        DATA_PATH = new ConfigManager("config.properties").getProperty("datapath");
+    public UnsafeMemStore(final String dataPath, final boolean parallelLoad, final ToIntFunction<String> segmentIds) {
+        DATA_PATH = dataPath;
         try {
-            loadKeyDir();
+            loadKeyDir(parallelLoad, segmentIds);
         } catch (IOException e) {
             logger.error("Unable to load KeyDir", e);
             throw new RuntimeException(e);
@@ -31,9 +25,9 @@ public class UnsafeMemStore implements MemStore {
     }
 
     @Override
-    public void write(String key, long valueOffset, String filename, long timestamp) {
-       MemRecord memRecord = new MemRecord(valueOffset, filename, timestamp);
-       keyDir.put(key, memRecord);
+    public MemRecord write(String key, long valueOffset, int valueLength, int segmentId, long timestamp, int size, int epoch) {
+       MemRecord memRecord = new MemRecord(valueOffset, valueLength, segmentId, timestamp, size, epoch);
+       return keyDir.put(key, memRecord);
     }
 
     @Override
@@ -45,79 +39,19 @@ public class UnsafeMemStore implements MemStore {
         return Optional.of(keyDir.get(key));
     }
 
-    private void loadKeyDir() throws IOException {
-        logger.info("Loading data to memstore");
-        final Map<String, FileChannel> fileChannels = new HashMap<>();
-
-        final File dir = new File(DATA_PATH);
-        final File[] files = dir.listFiles();
-
-        assert files != null;
-        for (final File file : files) {
-            FileChannel readFileChannel = FileChannel.open(
-                    Path.of(file.getAbsolutePath()),
-                    StandardOpenOption.READ);
-            fileChannels.put(file.getName(), readFileChannel);
-        }
-
-        List<String> sortedFileNames = fileChannels.keySet().stream().sorted(Collections.reverseOrder()).toList();
-        long latestFlushTimestamp = Long.MIN_VALUE;
-
-        for (final String filename: sortedFileNames) {
-            logger.info("Reading data file: {}", filename);
-            long offset = 0;
-            final FileChannel fileChannel = fileChannels.get(filename);
-
-            while (offset < fileChannel.size()) {
-                logger.info("offset {}, filechannelsize {}", offset, fileChannel.size());
-
-                // this should ideally be reading from DiskStore.
-                // disk data shouldn't directly be exposed to UnsafeMemStore
-                final DiskRecord record = DiskRecord.readFrom(fileChannel, offset);
-
-                if (record != null) {
-                    if (record.value().equals(TOMBSTONE_VALUE)) {
-                        if (keyDir.containsKey(record.key()) && keyDir.get(record.key()).timestamp() < record.timestamp()) {
-                            keyDir.remove(record.key());
-                            offset = record.offset() + 2;
-                            continue;
-                        }
-                    }
-
-                    if (record.key().equals(FLUSH_TOMBSTONE_VALUE)) {
-                        if (record.timestamp() > latestFlushTimestamp) {
-                            latestFlushTimestamp = record.timestamp();
-                        }
-
-                        offset = record.offset() + 2;
-                        continue;
-                    }
-
-                    if (keyDir.containsKey(record.key())) {
-                        if (keyDir.get(record.key()).timestamp() > record.timestamp()) {
-                            offset = record.offset() + 2;
-                            continue;
-                        }
-                    }
-
-                    keyDir.put(record.key(), new MemRecord(offset, filename, record.timestamp()));
-                    offset = record.offset() + 2;
-                } else {
-                    break;
-                }
-            }
-        }
+    @Override
+    public void remove(final String key) {
+        keyDir.remove(key);
+    }
 
-        if (latestFlushTimestamp != Long.MIN_VALUE) {
-            for (final String key : keyDir.keySet()) {
-                // there's no other correct way to do this
-                // if we clear keyDir upon seeing
-                if (keyDir.get(key).timestamp() < latestFlushTimestamp) {
-                    keyDir.remove(key);
-                }
-            }
-        }
+    @Override
+    public void forEach(final BiConsumer<String, MemRecord> action) {
+        keyDir.forEach(action);
+    }
 
+    private void loadKeyDir(final boolean parallel, final ToIntFunction<String> segmentIds) throws IOException {
+        logger.info("Loading data to memstore");
+        KeyDirLoader.load(DATA_PATH, parallel, segmentIds, keyDir::put);
         logger.info("KeyDir constructed finished, size: {}\n", keyDir.size());
     }
 }
@@ -0,0 +1,131 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import storage.StorageEngine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SlowReaderTest {
+    private static final int VALUE_LENGTH = 1024 * 1024;
+    // far more reply bytes than the socket buffers hold, so writing them blocks until the client reads
+    private static final int GETS = 64;
+    private static final int REPLY_TIMEOUT_MILLIS = 5000;
+
+    // completes writes on one thread, the way a partition's write thread does, and reads right away
+    private static final class OneWriteThreadEngine implements StorageEngine {
+        private final ExecutorService writeThread = Executors.newSingleThreadExecutor();
+        private final String value = "x".repeat(VALUE_LENGTH);
+        private final AtomicInteger reads = new AtomicInteger();
+
+        @Override
+        public CompletableFuture<Void> write(final String key, final String value) {
+            return CompletableFuture.runAsync(() -> { }, writeThread);
+        }
+
+        @Override
+        public CompletableFuture<String> read(final String key) {
+            reads.incrementAndGet();
+            return CompletableFuture.completedFuture(value);
+        }
+
+        @Override
+        public CompletableFuture<Void> delete(final String key) {
+            return CompletableFuture.runAsync(() -> { }, writeThread);
+        }
+
+        @Override
+        public CompletableFuture<Void> flush() {
+            return CompletableFuture.runAsync(() -> { }, writeThread);
+        }
+
+        @Override
+        public String getStatus() {
+            return "";
+        }
+    }
+
+    @Test
+    void aClientThatStopsReadingDoesNotHoldUpOtherClientsWrites() throws Exception {
+        final OneWriteThreadEngine engine = new OneWriteThreadEngine();
+        final ExecutorService connections = Executors.newCachedThreadPool();
+        final ExecutorService workers = Executors.newFixedThreadPool(2);
+        final RespServer server = new RespServer(0, new CommandProcessor(engine), connections, workers, 1024);
+
+        // held until the slow client's GETs are in, so its SET completes on the write thread behind them
+        final CountDownLatch release = new CountDownLatch(1);
+        engine.writeThread.submit(() -> {
+            release.await();
+            return null;
+        });
+
+        try (ServerSocket listener = new ServerSocket(0);
+             Socket slow = new Socket();
+             Socket fast = new Socket()) {
+            slow.setReceiveBufferSize(4096);
+            slow.connect(new InetSocketAddress("localhost", listener.getLocalPort()));
+            serve(server, connections, listener.accept());
+
+            final StringBuilder commands = new StringBuilder(resp("SET", "slow", "value"));
+            for (int i = 0; i < GETS; i++) {
+                commands.append(resp("GET", "big-" + i));
+            }
+            send(slow, commands.toString());
+            for (int i = 0; i < 500 && engine.reads.get() < GETS; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(GETS, engine.reads.get());
+            release.countDown();
+
+            fast.connect(new InetSocketAddress("localhost", listener.getLocalPort()));
+            fast.setSoTimeout(REPLY_TIMEOUT_MILLIS);
+            serve(server, connections, listener.accept());
+            final BufferedReader in = new BufferedReader(new InputStreamReader(fast.getInputStream(), StandardCharsets.UTF_8));
+            for (int i = 0; i < 10; i++) {
+                send(fast, resp("SET", "fast-" + i, "value"));
+                assertEquals("+OK", in.readLine());
+            }
+
+            // the slow client still gets every reply once it reads
+            final String bulkHeader = "$" + VALUE_LENGTH + "\r\n";
+            final byte[] replies = slow.getInputStream().readNBytes(5 + GETS * (bulkHeader.length() + VALUE_LENGTH + 2));
+            assertEquals("+OK\r\n" + bulkHeader, new String(replies, 0, 5 + bulkHeader.length(), StandardCharsets.US_ASCII));
+            assertEquals(5 + GETS * (bulkHeader.length() + VALUE_LENGTH + 2), replies.length);
+        } finally {
+            connections.shutdownNow();
+            workers.shutdownNow();
+            engine.writeThread.shutdownNow();
+        }
+    }
+
+    private static void serve(final RespServer server, final ExecutorService connections, final Socket socket) {
+        connections.submit(() -> server.handleClient(socket));
+    }
+
+    private static void send(final Socket socket, final String commands) throws IOException {
+        final OutputStream out = socket.getOutputStream();
+        out.write(commands.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static String resp(final String... arguments) {
+        final StringBuilder command = new StringBuilder("*").append(arguments.length).append("\r\n");
+        for (final String argument : arguments) {
+            command.append('$').append(argument.length()).append("\r\n").append(argument).append("\r\n");
+        }
+        return command.toString();
+    }
+}
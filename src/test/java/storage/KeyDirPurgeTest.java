@@ -0,0 +1,56 @@
+package storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeyDirPurgeTest {
+    private static final int KEYS = 10_000;
+    // enough 1 MB values to fill the first segment, so it gets sealed and can be merged
+    private static final int FILLERS = 70;
+
+    @TempDir
+    Path dataDir;
+
+    @Test
+    void flushedAndDeletedKeysLeaveTheKeyDirOnceTheirSegmentIsMerged() throws Exception {
+        final SingleThreadedStorageEngine engine = new SingleThreadedStorageEngine(dataDir + "/", "test-write-thread",
+                new WriteBudget(256L * 1024 * 1024, 1000), 0);
+
+        for (int i = 0; i < KEYS; i++) {
+            engine.write("key-" + i, "value-" + i).join();
+        }
+        engine.delete("key-0").join();
+        final String filler = "x".repeat(1024 * 1024);
+        for (int i = 0; i < FILLERS; i++) {
+            engine.write("filler-" + i, filler).join();
+        }
+        engine.flush().join();
+
+        final int before = keyDirSize(engine);
+        assertEquals(KEYS + FILLERS, before);
+        assertNull(engine.read("key-1").join());
+
+        new SegmentMerger(engine, dataDir + "/", "test-merge", 60_000, 0.5, 64L * 1024 * 1024, 0).mergeOnce();
+
+        // only the fillers in the segment still being written are left
+        final int after = keyDirSize(engine);
+        assertTrue(after < FILLERS, "keydir still holds " + after + " entries");
+        assertNull(engine.read("key-1").join());
+
+        engine.write("key-1", "again").join();
+        assertEquals("again", engine.read("key-1").join());
+    }
+
+    private static int keyDirSize(final SingleThreadedStorageEngine engine) throws Exception {
+        final AtomicInteger size = new AtomicInteger();
+        engine.runOnWriteThread(() -> engine.getMemStore().forEach((key, memRecord) -> size.incrementAndGet())).get();
+        return size.get();
+    }
+}
@@ -0,0 +1,53 @@
+package storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static storage.SingleThreadedStorageEngine.SEGMENT_NAME_ORDER;
+
+class SegmentNameOrderTest {
+    private static final String BASE = "1700000000000";
+    private static final int MERGES = 12;
+
+    @TempDir
+    Path dataDir;
+
+    @Test
+    void mergeOutputsSortByTheirSequenceNumber() {
+        final List<String> expected = List.of("999.data", "1000.data", BASE + ".1.data", BASE + ".2.data",
+                BASE + ".9.data", BASE + ".10.data", BASE + ".11.data", BASE + ".data", "1700000000001.1.data",
+                "1700000000001.data");
+        final List<String> names = new ArrayList<>(expected);
+        Collections.shuffle(names, new Random(42));
+
+        names.sort(SEGMENT_NAME_ORDER);
+        assertEquals(expected, names);
+    }
+
+    @Test
+    void mergesPastTenOnTheSameBaseKeepTheirOrder() throws Exception {
+        Files.createFile(dataDir.resolve(BASE + ".data"));
+        final SegmentMerger merger = new SegmentMerger(null, dataDir + "/", "test-merge", 60_000, 0.5, 64L * 1024 * 1024, 0);
+
+        final List<String> merged = new ArrayList<>();
+        for (int i = 1; i <= MERGES; i++) {
+            final String name = merger.mergedSegmentName(BASE + ".data");
+            assertEquals(BASE + "." + i + ".data", name);
+            Files.createFile(dataDir.resolve(name));
+            merged.add(name);
+        }
+
+        // the base segment is still the newest, so it stays active and every merge output is sealed, oldest first
+        final SingleThreadedStorageEngine engine = new SingleThreadedStorageEngine(dataDir + "/", "test-write-thread",
+                new WriteBudget(256L * 1024 * 1024, 1000), 0);
+        assertEquals(merged, engine.getSealedSegments().stream().map(Segment::name).toList());
+    }
+}
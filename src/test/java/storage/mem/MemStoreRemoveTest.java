@@ -0,0 +1,74 @@
+package storage.mem;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MemStoreRemoveTest {
+    private static final int KEYS = 200_000;
+
+    @TempDir
+    Path emptyDir;
+
+    @Test
+    void concurrentKeyDirDropsRemovedKeys() {
+        checkRemove(new ConcurrentMemStore(emptyDir + "/", false, name -> 0));
+    }
+
+    @Test
+    void heapKeyDirDropsRemovedKeys() {
+        checkRemove(new UnsafeMemStore(emptyDir + "/", false, name -> 0));
+    }
+
+    @Test
+    void offHeapKeyDirDropsRemovedKeysAndGivesBackTheirMemory() {
+        final OffHeapMemStore memStore = new OffHeapMemStore(emptyDir + "/", false, name -> 0);
+        checkRemove(memStore);
+        final long grown = memStore.getOffHeapBytes();
+
+        for (int i = 0; i < KEYS; i++) {
+            memStore.remove("key-" + i);
+        }
+        // pages are 4 MB, so a few of them are kept
+        assertTrue(memStore.getOffHeapBytes() < grown / 2,"still " + memStore.getOffHeapBytes() + " of " + grown + " bytes");
+        assertEquals(0, size(memStore));
+    }
+
+    // removes every other key, then checks lookups, iteration and that new keys still go in
+    private static void checkRemove(final MemStore memStore) {
+        for (int i = 0; i < KEYS; i++) {
+            memStore.write("key-" + i, i, 10, 1, i, 30, 0);
+        }
+        for (int i = 0; i < KEYS; i += 2) {
+            memStore.remove("key-" + i);
+        }
+        memStore.remove("missing");
+
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(i % 2 == 1, memStore.read("key-" + i).isPresent(), "key-" + i);
+        }
+        final Map<String, MemRecord> left = new HashMap<>();
+        memStore.forEach(left::put);
+        assertEquals(KEYS / 2, left.size());
+        assertEquals(1, left.get("key-1").valueOffset());
+
+        for (int i = 0; i < KEYS; i += 2) {
+            memStore.write("key-" + i, i, 10, 2, i, 30, 0);
+        }
+        assertEquals(KEYS, size(memStore));
+        assertEquals(2, memStore.read("key-0").orElseThrow().segmentId());
+        assertEquals(1, memStore.read("key-1").orElseThrow().segmentId());
+    }
+
+    private static int size(final MemStore memStore) {
+        final int[] size = {0};
+        memStore.forEach((key, memRecord) -> size[0]++);
+        return size[0];
+    }
+}